@@ -61,6 +61,8 @@ public class CellEntry implements Index2D {
     }
 
     public String toString() {
-        return Ex2Utils.ABC[this.x] + this.y;
+        StringBuilder sb = new StringBuilder(CellKey.MAX_COLUMN_LETTERS + 10);
+        CellKey.appendColumn(sb, this.x); // A..Z, AA, AB, ...
+        return sb.append(this.y).toString();
     }
 }
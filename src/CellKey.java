@@ -0,0 +1,133 @@
+/**
+ * A cell address packed into a single long: the column (x) in the high 32 bits and the row (y) in the low 32 bits.
+ * Cells are identified by these keys (or by their slot in the sheet) internally,
+ * names such as "B3" are only parsed and built at the edges (see CellEntry.toString).
+ * Columns are named as in Excel (bijective base 26): A..Z, AA..AZ, BA..ZZ, AAA.., rows are 0..Integer.MAX_VALUE.
+ * Parsing works on a range of any CharSequence (e.g., a reference inside a formula) and does not allocate.
+ */
+public final class CellKey {
+    public static final long NONE = -1; // not a valid cell name
+    public static final int MAX_COLUMN_LETTERS = 7; // "FXSHRXW" is Integer.MAX_VALUE - 1
+
+    private CellKey() {
+    }
+
+    public static long pack(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    public static int x(long key) {
+        return (int) (key >>> 32);
+    }
+
+    public static int y(long key) {
+        return (int) key;
+    }
+
+    // parses a whole cell name ("A1", "b12", "AB7"), NONE if s is not a cell name
+    public static long parse(CharSequence s) {
+        return s == null ? NONE : parse(s, 0, s.length());
+    }
+
+    /**
+     * Parses the cell name in s[start, end): column letters (any case) followed by the row digits.
+     * @return the key of the cell, NONE if the range is not a cell name (or the column / row is too large).
+     */
+    public static long parse(CharSequence s, int start, int end) {
+        int i = start;
+        long column = 0; // bijective: A = 1, Z = 26, AA = 27
+        while (i < end && isLetter(s.charAt(i))) {
+            column = column * 26 + (Character.toUpperCase(s.charAt(i)) - 'A' + 1);
+            if (column > Integer.MAX_VALUE) return NONE;
+            i++;
+        }
+        if (i == start || i == end) return NONE; // no letters or no digits
+        long row = 0;
+        for (; i < end; i++) {
+            char d = s.charAt(i);
+            if (d < '0' || d > '9') return NONE;
+            row = row * 10 + (d - '0');
+            if (row > Integer.MAX_VALUE) return NONE;
+        }
+        return pack((int) column - 1, (int) row);
+    }
+
+    // the end of the letters starting at i (the column part of a name in a formula)
+    public static int scanLetters(CharSequence s, int i, int end) {
+        while (i < end && isLetter(s.charAt(i))) i++;
+        return i;
+    }
+
+    // the end of the digits starting at i (the row part of a name in a formula)
+    public static int scanDigits(CharSequence s, int i, int end) {
+        while (i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9') i++;
+        return i;
+    }
+
+    public static boolean isLetter(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+    }
+
+    // number of letters in the name of column x
+    public static int columnLength(int x) {
+        int n = 1;
+        for (long v = (long) x + 1; v > 26; v = (v - 1) / 26) n++;
+        return n;
+    }
+
+    // the i-th letter (from the left) of the name of column x
+    public static char columnLetter(int x, int i) {
+        long v = (long) x + 1;
+        for (int k = columnLength(x) - 1; k > i; k--) v = (v - 1) / 26;
+        return (char) ('A' + (v - 1) % 26);
+    }
+
+    // the name of column x ("A", "Z", "AA", ...)
+    public static String columnName(int x) {
+        StringBuilder sb = new StringBuilder(MAX_COLUMN_LETTERS);
+        appendColumn(sb, x);
+        return sb.toString();
+    }
+
+    // append the name of column x
+    public static void appendColumn(StringBuilder sb, int x) {
+        int n = columnLength(x);
+        for (int i = 0; i < n; i++) sb.append(columnLetter(x, i));
+    }
+
+    // true iff s is a part of the name of the cell (e.g., "3" and "B3" of "B3"), checked without building the name
+    public static boolean nameContains(long key, CharSequence s) {
+        int n = nameLength(key), m = s.length();
+        for (int start = 0; start + m <= n; start++) {
+            int i = 0;
+            while (i < m && nameChar(key, start + i) == s.charAt(i)) i++;
+            if (i == m) return true;
+        }
+        return false;
+    }
+
+    // true iff s is exactly the name of the cell (case sensitive, unlike parse)
+    public static boolean nameEquals(long key, CharSequence s) {
+        return s.length() == nameLength(key) && nameContains(key, s);
+    }
+
+    private static int nameLength(long key) {
+        int digits = 1;
+        for (int y = y(key); y >= 10; y /= 10) digits++;
+        return columnLength(x(key)) + digits;
+    }
+
+    // the i-th character of the name of the cell
+    private static char nameChar(long key, int i) {
+        int letters = columnLength(x(key));
+        if (i < letters) return columnLetter(x(key), i);
+        int y = y(key);
+        for (int k = nameLength(key) - 1; k > i; k--) y /= 10;
+        return (char) ('0' + y % 10);
+    }
+
+    // the name of the cell, e.g., "B3"
+    public static String name(long key) {
+        return new CellEntry(x(key), y(key)).toString();
+    }
+}
@@ -0,0 +1,222 @@
+import java.util.Arrays;
+
+/**
+ * Classifies the content of a cell in a single hand written pass: NUMBER, TEXT, FORM or ERR_FORM_FORMAT.
+ * For a formula the same pass produces its token stream (numbers, cell references, operators and parentheses)
+ * and the keys (see CellKey) of the cells it references, which is all Formula needs to build its tree.
+ * Classification never evaluates anything (so it does not depend on the other cells), never throws
+ * for a bad input and does not use regular expressions.
+ */
+public final class CellLexer {
+    // token kinds
+    public static final byte NUM = 1, REF = 2, PLUS = 3, MINUS = 4, MUL = 5, DIV = 6, OPEN = 7, CLOSE = 8, NEG = 9;
+
+    private final int type; // one of Ex2Utils TEXT, NUMBER, FORM, ERR_FORM_FORMAT
+    private double number; // the value of a NUMBER cell
+    private byte[] kinds = new byte[0]; // the tokens of a formula
+    private double[] numbers; // the value of each NUM token
+    private int[] xs, ys; // the coordinates of each REF token
+    private int size;
+    private long[] references = NO_REFERENCES;
+    private static final long[] NO_REFERENCES = new long[0];
+
+    private CellLexer(int type) {
+        this.type = type;
+    }
+
+    /**
+     * Classifies the content of a cell.
+     * @param s the content of the cell (may be null).
+     * @return the classification, with the tokens and references in case of a formula.
+     */
+    public static CellLexer classify(String s) {
+        if (s == null) return new CellLexer(Ex2Utils.TEXT);
+        if (s.startsWith("=")) return lexFormula(s);
+        String t = s.trim(); // as Double.parseDouble, which decides what a number is
+        if (scanNumber(t, 0, true) == t.length() || isOtherNumber(t)) { // the scan is -1 for an empty string
+            CellLexer ans = new CellLexer(Ex2Utils.NUMBER);
+            ans.number = Double.parseDouble(t); // already validated, can not fail
+            return ans;
+        }
+        return new CellLexer(Ex2Utils.TEXT);
+    }
+
+    /**
+     * True iff Double.parseDouble accepts the (trimmed) string, for the numbers the scan does not cover:
+     * "NaN", "Infinity", a type suffix ("1e5d", "2f") or a hexadecimal number ("0x1p3").
+     * Only a string that starts and ends like one is parsed, so a text does not pay for an exception.
+     */
+    private static boolean isOtherNumber(String t) {
+        if (t.isEmpty()) return false;
+        char first = t.charAt(0), last = t.charAt(t.length() - 1);
+        if (!isDigit(first) && "+-.NI".indexOf(first) < 0) return false;
+        if (!isDigit(last) && "dDfFNy.".indexOf(last) < 0) return false;
+        try {
+            Double.parseDouble(t);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // true iff the string is a number
+    public static boolean isNumber(String s) {
+        return s != null && !s.startsWith("=") && classify(s).type == Ex2Utils.NUMBER;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    // the value of a NUMBER cell
+    public double getNumber() {
+        return number;
+    }
+
+    // number of tokens of a formula
+    public int size() {
+        return size;
+    }
+
+    public byte kind(int i) {
+        return kinds[i];
+    }
+
+    // the value of a NUM token
+    public double number(int i) {
+        return numbers[i];
+    }
+
+    // the x coordinate of a REF token
+    public int refX(int i) {
+        return xs[i];
+    }
+
+    // the y coordinate of a REF token
+    public int refY(int i) {
+        return ys[i];
+    }
+
+    // the keys (see CellKey) of the cells referenced by a valid formula, in order of appearance
+    public long[] getReferences() {
+        return references;
+    }
+
+    // ****** the formula pass ******
+
+    private static CellLexer lexFormula(String s) {
+        CellLexer ans = new CellLexer(Ex2Utils.FORM);
+        ans.kinds = new byte[Math.max(4, s.length())];
+        ans.numbers = new double[ans.kinds.length];
+        ans.xs = new int[ans.kinds.length];
+        ans.ys = new int[ans.kinds.length];
+        long[] refs = new long[4];
+        int refCount = 0;
+
+        boolean expectOperand = true; // an operand (or '(' / unary '-') is expected next
+        int depth = 0; // open parentheses
+        int i = skipSpaces(s, 1);
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            if (expectOperand) {
+                if (c == '(') {
+                    ans.add(OPEN);
+                    depth++;
+                    i++;
+                } else if (c == '-' && (ans.size == 0 || ans.kinds[ans.size - 1] == OPEN)) {
+                    ans.add(NEG); // a sign is allowed only at the start or right after '('
+                    i++;
+                } else if (isDigit(c) || c == '.') {
+                    int end = scanNumber(s, i, false);
+                    if (end < 0) return new CellLexer(Ex2Utils.ERR_FORM_FORMAT);
+                    ans.numbers[ans.size] = Double.parseDouble(s.substring(i, end));
+                    ans.add(NUM);
+                    i = end;
+                    expectOperand = false;
+                } else if (CellKey.isLetter(c)) {
+                    // a cell reference: the column letters followed by the row, parsed in place
+                    int j = CellKey.scanDigits(s, CellKey.scanLetters(s, i, s.length()), s.length());
+                    long key = CellKey.parse(s, i, j);
+                    if (key == CellKey.NONE) return new CellLexer(Ex2Utils.ERR_FORM_FORMAT);
+                    ans.xs[ans.size] = CellKey.x(key);
+                    ans.ys[ans.size] = CellKey.y(key);
+                    ans.add(REF);
+                    if (refCount == refs.length) refs = Arrays.copyOf(refs, refCount * 2);
+                    refs[refCount++] = key;
+                    i = j;
+                    expectOperand = false;
+                } else {
+                    return new CellLexer(Ex2Utils.ERR_FORM_FORMAT);
+                }
+            } else {
+                if (c == ')') {
+                    if (--depth < 0) return new CellLexer(Ex2Utils.ERR_FORM_FORMAT);
+                    ans.add(CLOSE);
+                } else if (c == '+') {
+                    ans.add(PLUS);
+                    expectOperand = true;
+                } else if (c == '-') {
+                    ans.add(MINUS);
+                    expectOperand = true;
+                } else if (c == '*') {
+                    ans.add(MUL);
+                    expectOperand = true;
+                } else if (c == '/') {
+                    ans.add(DIV);
+                    expectOperand = true;
+                } else {
+                    return new CellLexer(Ex2Utils.ERR_FORM_FORMAT);
+                }
+                i++;
+            }
+            i = skipSpaces(s, i);
+        }
+        if (expectOperand || depth != 0) return new CellLexer(Ex2Utils.ERR_FORM_FORMAT);
+        ans.references = refCount == 0 ? NO_REFERENCES : Arrays.copyOf(refs, refCount);
+        return ans;
+    }
+
+    private void add(byte kind) {
+        kinds[size++] = kind;
+    }
+
+    /**
+     * Scans a number starting at i: digits with an optional '.', (optionally) a sign and an exponent.
+     * @return the index right after the number, or -1 if there is no valid number at i.
+     */
+    private static int scanNumber(String s, int i, boolean signAndExponent) {
+        int n = s.length();
+        if (signAndExponent && i < n && (s.charAt(i) == '-' || s.charAt(i) == '+')) i++;
+        int digits = 0;
+        while (i < n && isDigit(s.charAt(i))) {
+            i++;
+            digits++;
+        }
+        if (i < n && s.charAt(i) == '.') {
+            i++;
+            while (i < n && isDigit(s.charAt(i))) {
+                i++;
+                digits++;
+            }
+        }
+        if (digits == 0) return -1;
+        if (signAndExponent && i < n && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+            int j = i + 1;
+            if (j < n && (s.charAt(j) == '-' || s.charAt(j) == '+')) j++;
+            int start = j;
+            while (j < n && isDigit(s.charAt(j))) j++;
+            if (j == start) return -1;
+            i = j;
+        }
+        return i;
+    }
+
+    private static int skipSpaces(String s, int i) {
+        while (i < s.length() && Character.isWhitespace(s.charAt(i))) i++;
+        return i;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,98 @@
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * The bookkeeping of a bounded cache of per slot entries (e.g., the value strings of Ex2Sheet), with CLOCK eviction:
+ * the cached slots are kept in a ring with a reference bit each, set when the entry is used.
+ * When the entries are over the budget, the hand goes around the ring: a referenced entry gets a second chance
+ * (its bit is cleared), an entry that was not used since the hand last passed is evicted.
+ * A new entry starts without its bit, so a single pass over many cells (e.g., a save) evicts its own entries first.
+ * The entries themselves are kept by the owner, which is told to drop an evicted one.
+ * Only the cached slots are kept (the ring and the slot -> position map), so the bookkeeping grows with the number
+ * of entries that fit in the budget, not with the number of slots.
+ */
+class ClockCache {
+    private final long budget; // in (estimated) bytes
+    private int[] ring = new int[64]; // the cached slots
+    private int[] costs = new int[64]; // the bytes of the entry at each position of the ring
+    private boolean[] referenced = new boolean[64]; // the entry at each position was used since the hand passed
+    private int size, hand;
+    private final LongIntMap positions = new LongIntMap(); // cached slot -> its position in the ring
+    private long bytes;
+    private long evictions;
+
+    ClockCache(long budget) {
+        if (budget <= 0) throw new IllegalArgumentException("Invalid cache budget: " + budget);
+        this.budget = budget;
+    }
+
+    // the entry of the slot was used
+    void touch(int slot) {
+        int k = positions.get(slot);
+        if (k != -1) referenced[k] = true;
+    }
+
+    /**
+     * Adds (or replaces) the entry of the slot, then evicts entries until the cache is within its budget
+     * (possibly the new entry itself, if it is larger than the whole budget).
+     * @param evict called with every evicted slot, the owner should drop its entry.
+     */
+    void put(int slot, int cost, IntConsumer evict) {
+        int k = positions.get(slot);
+        if (k != -1) {
+            bytes -= costs[k];
+        } else {
+            if (size == ring.length) {
+                ring = Arrays.copyOf(ring, size * 2);
+                costs = Arrays.copyOf(costs, size * 2);
+                referenced = Arrays.copyOf(referenced, size * 2);
+            }
+            k = size++;
+            ring[k] = slot;
+            positions.put(slot, k);
+        }
+        costs[k] = cost;
+        referenced[k] = false;
+        bytes += cost;
+        while (bytes > budget && size > 0) {
+            if (hand >= size) hand = 0;
+            if (referenced[hand]) {
+                referenced[hand] = false; // a second chance
+                hand++;
+                continue;
+            }
+            int s = ring[hand];
+            bytes -= costs[hand];
+            positions.remove(s);
+            if (hand < --size) { // the last entry takes its place in the ring
+                ring[hand] = ring[size];
+                costs[hand] = costs[size];
+                referenced[hand] = referenced[size];
+                positions.put(ring[hand], hand);
+            }
+            evictions++;
+            evict.accept(s);
+        }
+    }
+
+    // forget all the entries (the owner dropped them)
+    void clear() {
+        positions.clear();
+        size = 0;
+        hand = 0;
+        bytes = 0;
+    }
+
+    // the (estimated) bytes of the cached entries
+    long bytes() {
+        return bytes;
+    }
+
+    long evictions() {
+        return evictions;
+    }
+
+    void resetStats() {
+        evictions = 0;
+    }
+}
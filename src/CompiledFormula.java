@@ -0,0 +1,15 @@
+/**
+ * A formula compiled into JVM bytecode (see FormulaJit).
+ * Implementations are generated at runtime as hidden classes, one per hot formula shape (see Formula.Template):
+ * the referenced cells are offsets from the anchor the formula is evaluated at.
+ */
+public interface CompiledFormula {
+    /**
+     * Computes the formula using the values of the cells in the given sheet.
+     * @param sheet the sheet the referenced cells are read from.
+     * @param x the column of the cell of the formula.
+     * @param y the row of the cell of the formula.
+     * @return the value of the formula.
+     */
+    double evaluate(Ex2Sheet sheet, int x, int y);
+}
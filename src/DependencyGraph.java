@@ -0,0 +1,186 @@
+import java.util.Arrays;
+
+/**
+ * Keeps the reference edges between the cells of a spreadsheet, cells are identified by an int index.
+ * For every cell we store the cells it references (precedents) and the cells referencing it (dependents),
+ * so a change in one cell can be propagated only to the cells that are affected by it.
+ * Cycles are found with Tarjan's strongly connected components algorithm (iterative, so long chains are fine).
+ */
+public class DependencyGraph {
+    private static final int[] NONE = new int[0];
+
+    private int[][] precedents; // cell -> cells it references
+    private IntList[] dependents; // cell -> cells that reference it
+
+    // scratch arrays of the Tarjan pass
+    private int[] member; // member[c] == pass iff c is one of the cells being ordered
+    private int[] index, lowLink, nextRef;
+    private boolean[] onStack;
+    private int pass;
+
+    public DependencyGraph(int size) {
+        precedents = new int[size][];
+        dependents = new IntList[size];
+        member = new int[size];
+        index = new int[size];
+        lowLink = new int[size];
+        nextRef = new int[size];
+        onStack = new boolean[size];
+    }
+
+    // number of cells in this graph
+    public int size() {
+        return precedents.length;
+    }
+
+    // make room for the cells 0..size-1 (the capacity is at least doubled, so growing is amortized O(1) per cell)
+    public void ensureCapacity(int size) {
+        if (size <= precedents.length) return;
+        int n = Math.max(size, precedents.length * 2);
+        precedents = Arrays.copyOf(precedents, n);
+        dependents = Arrays.copyOf(dependents, n);
+        member = Arrays.copyOf(member, n);
+        index = Arrays.copyOf(index, n);
+        lowLink = Arrays.copyOf(lowLink, n);
+        nextRef = Arrays.copyOf(nextRef, n);
+        onStack = Arrays.copyOf(onStack, n);
+    }
+
+    // replace the references of a cell (both directions), refs should not contain duplicates
+    public void setReferences(int cell, int[] refs) {
+        for (int ref : precedents(cell)) {
+            dependents[ref].removeValue(cell);
+        }
+        precedents[cell] = (refs == null || refs.length == 0) ? null : refs;
+        for (int ref : precedents(cell)) {
+            if (dependents[ref] == null) dependents[ref] = new IntList(4);
+            dependents[ref].add(cell);
+        }
+    }
+
+    // add a reference of a cell (both directions), the cell should not reference ref already
+    public void addReference(int cell, int ref) {
+        int[] refs = precedents(cell);
+        int[] ans = Arrays.copyOf(refs, refs.length + 1);
+        ans[refs.length] = ref;
+        precedents[cell] = ans;
+        if (dependents[ref] == null) dependents[ref] = new IntList(4);
+        dependents[ref].add(cell);
+    }
+
+    // the cells referenced by the given cell
+    public int[] precedents(int cell) {
+        int[] ans = precedents[cell];
+        return ans == null ? NONE : ans;
+    }
+
+    // number of cells that reference the given cell
+    public int dependentCount(int cell) {
+        return dependents[cell] == null ? 0 : dependents[cell].size();
+    }
+
+    // the i-th cell that references the given cell
+    public int dependent(int cell, int i) {
+        return dependents[cell].get(i);
+    }
+
+    /**
+     * Marks the cell and all of its transitive dependents (cells already marked are not walked again).
+     * @param cell the changed cell.
+     * @param marked the marks, indexed by cell.
+     * @param added the newly marked cells are added to this list.
+     */
+    public void collectAffected(int cell, boolean[] marked, IntList added) {
+        if (marked[cell]) return;
+        IntList work = new IntList();
+        marked[cell] = true;
+        added.add(cell);
+        work.add(cell);
+        while (!work.isEmpty()) {
+            int c = work.pop();
+            for (int i = 0; i < dependentCount(c); i++) {
+                int dep = dependent(c, i);
+                if (!marked[dep]) {
+                    marked[dep] = true;
+                    added.add(dep);
+                    work.add(dep);
+                }
+            }
+        }
+    }
+
+    /**
+     * Orders the given cells so every cell comes after the cells (from the same group) it references,
+     * using Tarjan's strongly connected components algorithm over the precedent edges:
+     * a component is completed only after all the components it references, which is exactly the evaluation order.
+     * The cells of a component with more than one cell (or a cell referencing itself) form a cycle,
+     * they are written as ~cell (a negative number) in the output.
+     * @param cells the cells to order (no duplicates).
+     * @param n the number of cells in the cells array.
+     * @param order output, n entries: the cells in evaluation order, ~cell for the members of a cycle.
+     */
+    public void order(int[] cells, int n, int[] order) {
+        pass++;
+        for (int i = 0; i < n; i++) {
+            member[cells[i]] = pass;
+            index[cells[i]] = -1;
+        }
+        int[] stack = new int[n]; // the Tarjan stack
+        int[] call = new int[n]; // the explicit "call stack" of the depth first search
+        int sp = 0, out = 0, counter = 0;
+
+        for (int s = 0; s < n; s++) {
+            if (index[cells[s]] != -1) continue;
+            int top = 0;
+            call[top++] = cells[s];
+            index[cells[s]] = lowLink[cells[s]] = counter++;
+            nextRef[cells[s]] = 0;
+            stack[sp++] = cells[s];
+            onStack[cells[s]] = true;
+
+            while (top > 0) {
+                int v = call[top - 1];
+                int[] refs = precedents(v);
+                if (nextRef[v] < refs.length) {
+                    int w = refs[nextRef[v]++];
+                    if (member[w] != pass) continue; // not part of this group (already computed)
+                    if (index[w] == -1) {
+                        index[w] = lowLink[w] = counter++;
+                        nextRef[w] = 0;
+                        stack[sp++] = w;
+                        onStack[w] = true;
+                        call[top++] = w;
+                    } else if (onStack[w]) {
+                        lowLink[v] = Math.min(lowLink[v], index[w]);
+                    }
+                    continue;
+                }
+                // all the references of v are done
+                top--;
+                if (top > 0) {
+                    int parent = call[top - 1];
+                    lowLink[parent] = Math.min(lowLink[parent], lowLink[v]);
+                }
+                if (lowLink[v] == index[v]) { // v is the root of a component
+                    int start = sp;
+                    do {
+                        start--;
+                    } while (stack[start] != v);
+                    boolean cycle = sp - start > 1 || referencesItself(v);
+                    for (int k = start; k < sp; k++) {
+                        onStack[stack[k]] = false;
+                        order[out++] = cycle ? ~stack[k] : stack[k];
+                    }
+                    sp = start;
+                }
+            }
+        }
+    }
+
+    private boolean referencesItself(int cell) {
+        for (int ref : precedents(cell)) {
+            if (ref == cell) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * The cell returned for every cell that was never set (or was emptied): a single shared, immutable instance,
+ * so an empty cell costs no memory. Use Sheet.set to put content in a cell.
+ */
+public final class EmptyCell implements Cell {
+    public static final EmptyCell INSTANCE = new EmptyCell();
+
+    private EmptyCell() {
+    }
+
+    @Override
+    public String getData() {
+        return Ex2Utils.EMPTY_CELL;
+    }
+
+    @Override
+    public void setData(String s) {
+        throw immutable();
+    }
+
+    @Override
+    public String getLine() {
+        return Ex2Utils.EMPTY_CELL;
+    }
+
+    @Override
+    public int getType() {
+        return Ex2Utils.TEXT;
+    }
+
+    @Override
+    public void setType(int t) {
+        throw immutable();
+    }
+
+    @Override
+    public int getOrder() {
+        return 0;
+    }
+
+    @Override
+    public void setOrder(int t) {
+        throw immutable();
+    }
+
+    @Override
+    public void setError(String error) {
+        throw immutable();
+    }
+
+    @Override
+    public String toString() {
+        return getData();
+    }
+
+    private static UnsupportedOperationException immutable() {
+        return new UnsupportedOperationException("An empty cell can not be changed, use Sheet.set");
+    }
+}
@@ -78,7 +78,7 @@ public class Ex2GUI {
 	 */
 	private static void drawFrame() {
 		StdDrawEx2.setPenColor(StdDrawEx2.BLACK);
-		int max_y = table.height();
+		int max_y = Math.min(table.height(), Ex2Utils.HEIGHT); // the sheet may have grown beyond the window
 		double x_space = Ex2Utils.GUI_X_SPACE, x_start = Ex2Utils.GUI_X_START;
 		double y_height = Ex2Utils.GUI_Y_TEXT_START;
 		for (int y = 0; y < max_y; y = y + 1) {
@@ -88,7 +88,7 @@ public class Ex2GUI {
 			StdDrawEx2.line(xs, 0, xs, max_y);
 			int yy = max_y - (y + 1);
 			StdDrawEx2.text(1, y + y_height, "" + (yy));
-			StdDrawEx2.text(xc, max_y + y_height, "" + Ex2Utils.ABC[y]);
+			StdDrawEx2.text(xc, max_y + y_height, CellKey.columnName(y));
 		}
 	}
 	/**
@@ -96,8 +96,8 @@ public class Ex2GUI {
 	 */
 	private static void drawCells() {
 		StdDrawEx2.setPenColor(StdDrawEx2.BLACK);
-		int max_y = table.height();
-		int maxx = table.width();
+		int max_y = Math.min(table.height(), Ex2Utils.HEIGHT); // only the part that fits in the window
+		int maxx = Math.min(table.width(), Ex2Utils.WIDTH);
 		double x_space = Ex2Utils.GUI_X_SPACE, x_start = Ex2Utils.GUI_X_START;
 		double y_height = Ex2Utils.GUI_Y_TEXT_START;
 		for (int x = 0; x < maxx; x = x + 1) {
@@ -135,12 +135,11 @@ public class Ex2GUI {
 			}
 			else {
 				table.set(xx, yy, c);
-				int[][] calc_d = table.depth();
-				if (calc_d[xx][yy] == Ex2Utils.ERR) {
+				int calc_d = (table instanceof Ex2Sheet) ? ((Ex2Sheet) table).depth(xx, yy) : table.depth()[xx][yy];
+				if (calc_d == Ex2Utils.ERR) {
 					table.get(xx,yy).setType(Ex2Utils.ERR_CYCLE_FORM);
 				}
 			}
-			table.eval();
 			StdDrawEx2.resetXY();
 		}
 	}
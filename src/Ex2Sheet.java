@@ -1,26 +1,110 @@
 import java.io.*;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 
-public class Ex2Sheet implements Sheet {
-    private Cell[][] table;
+public class Ex2Sheet implements Sheet, Formula.Values {
     private int width;
     private int height;
+    private TileIndex tiles = new TileIndex(); // x,y -> slot, only the used cells get slots
+    // the cells, one column per field (indexed by slot), get() wraps a slot with an SCell view
+    private String[] raw = new String[0]; // the content of each cell, null for an empty cell
+    private byte[] types = new byte[0]; // the Ex2Utils type of each cell (TEXT, NUMBER, FORM, ERR_...)
+    private byte[] errors = new byte[0]; // the error of each cell, one of the *_ERROR codes
+    private Formula[] formulas = new Formula[0]; // the compiled formula of each valid FORM cell
+    private final Formula.Templates templates = new Formula.Templates(); // the programs of the formulas, by shape
+    // the subexpressions of the formulas in the cells, a subexpression used by several cells is computed once
+    private final Formula.Subexpressions subexpressions = new Formula.Subexpressions();
+    private int recalculation, recalculations; // the current recalculation (0 while none), and the last one given
+    public static final byte NO_ERROR = 0, FORM_ERROR = 1, CYCLE_ERROR = 2;
+    // the last computed value of each cell, kept as primitives (indexed by slot)
+    public static final byte EMPTY_VALUE = 0, NUMBER_VALUE = 1, TEXT_VALUE = 2, ERR_FORM_VALUE = 3, ERR_CYCLE_VALUE = 4;
+    private double[] numbers; // the computed number of each cell
+    private byte[] kinds; // the kind of the computed value of each cell
+    private int[] depths; // the dependency depth (= the order) of each cell, updated whenever the cell is computed
+    // the string of each computed value, built once: valid while its version is the version of the value
+    // (a value gets a new version whenever it is computed, i.e. only when the cell or one of its precedents changed)
+    private int[] versions = new int[0];
+    private String[] shown = new String[0];
+    private int[] shownVersions = new int[0];
+    private long cacheHits, cacheMisses, cacheRecomputes;
+    private ClockCache shownCache; // not null: the strings are bounded by a byte budget (see setValueCacheBudget)
+    private DependencyGraph graph = new DependencyGraph(0); // reference edges between cells (indexed by slot)
+    // the references to cells without a slot (never used), kept out of the graph so a reference allocates nothing:
+    // the key of such a cell -> the slots referencing it, and a slot -> the keys it references that way
+    private final Map<Long, IntList> waiting = new HashMap<>();
+    private final Map<Integer, long[]> unresolved = new HashMap<>();
+    private boolean[] dirty = new boolean[0]; // cells whose computed value is out of date
+    private IntList dirtyCells = new IntList(); // the dirty cells (a cell may appear after it was cleaned)
+    private int batchDepth; // > 0 while changes are batched (see beginBatch)
+    private int undoWidth, undoHeight, undoSlotCount; // the size of the sheet (and its used slots) when the batch began
+    // the content of the cells replaced during the current batch: their slots (in order), and their old content
+    // (only for the slots used before the batch, the newer ones were empty)
+    private IntList undoSlots = new IntList();
+    private List<String> undoContent = new ArrayList<>();
+    private LongIntMap undoIndex = new LongIntMap(); // slot -> position in undoSlots
+    private SheetJournal journal; // not null: every set() is journaled (see SheetJournal.open)
+    private ForkJoinPool pool; // not null: recalculate large groups of cells in parallel (see setParallel)
+    public static final int PARALLEL_THRESHOLD = 1024; // smaller recalculations are done sequentially
+    private static final long[] NO_REFERENCES = new long[0];
 
-    // constructor to initialize the sheet with the given width and height
+    // constructor to initialize the sheet with the given width and height (the sheet grows when needed, see set)
     public Ex2Sheet(int width, int height) {
         this.width = width;
         this.height = height;
-        this.table = new Cell[width][height];
+        this.numbers = new double[0];
+        this.kinds = new byte[0];
+        this.depths = new int[0];
+        // nothing is allocated for the cells: a cell gets a slot when it is first used
+    }
+
+    // the slot of the x,y cell, allocating it (and growing the slot columns) if needed
+    private int slot(int x, int y) {
+        int used = tiles.size();
+        int slot = tiles.slot(x, y);
+        if (tiles.size() > raw.length) resize(Math.max(tiles.size(), raw.length * 2));
+        if (slot == used && !waiting.isEmpty()) resolve(slot, CellKey.pack(x, y)); // a new slot
+        return slot;
+    }
 
-        // initialize all cells with empty content
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height; j++) {
-                table[i][j] = new SCell(Ex2Utils.EMPTY_CELL, this, convertCoordinatesToCellName(i,j));
+    // the cells waiting for the cell that just got the slot reference it through the graph from now on
+    private void resolve(int slot, long key) {
+        IntList deps = waiting.remove(key);
+        if (deps == null) return;
+        for (int k = 0; k < deps.size(); k++) {
+            int dep = deps.get(k);
+            graph.addReference(dep, slot);
+            long[] keys = unresolved.remove(dep);
+            if (keys.length > 1) {
+                long[] rest = new long[keys.length - 1];
+                int n = 0;
+                for (long other : keys) {
+                    if (other != key) rest[n++] = other;
+                }
+                unresolved.put(dep, rest);
             }
         }
     }
 
+    // reallocate the slot columns with room for n cells
+    private void resize(int n) {
+        raw = Arrays.copyOf(raw, n);
+        types = Arrays.copyOf(types, n);
+        errors = Arrays.copyOf(errors, n);
+        formulas = Arrays.copyOf(formulas, n);
+        numbers = Arrays.copyOf(numbers, n);
+        kinds = Arrays.copyOf(kinds, n);
+        depths = Arrays.copyOf(depths, n);
+        versions = Arrays.copyOf(versions, n);
+        shown = Arrays.copyOf(shown, n);
+        shownVersions = Arrays.copyOf(shownVersions, n);
+        dirty = Arrays.copyOf(dirty, n);
+        graph.ensureCapacity(n);
+    }
+
     // check if a given cell is within the valid range
     @Override
     public boolean isIn(int x, int y) {
@@ -39,153 +123,729 @@ public class Ex2Sheet implements Sheet {
         return height;
     }
 
-    // set a value to a specific cell
+    /**
+     * Grows the sheet (if needed) so it is at least width x height, e.g., before a bulk import.
+     * Only the bounds change: cells are stored sparsely, nothing is copied or allocated for the new area.
+     */
+    public void ensureSize(int width, int height) {
+        if (width < 0 || height < 0) throw new IllegalArgumentException("Invalid sheet size");
+        this.width = Math.max(this.width, width);
+        this.height = Math.max(this.height, height);
+    }
+
+    /**
+     * Makes room for (at least) the given number of cells in the cell columns, so a bulk import of that many cells
+     * does not grow them along the way. The columns also grow by themselves, doubling their capacity each time.
+     */
+    public void ensureCapacity(int cells) {
+        if (cells > raw.length) resize(cells);
+    }
+
+    // set a value to a specific cell, a cell beyond the current size grows the sheet
     @Override
     public void set(int x, int y, String c) {
-        if (!isIn(x, y)) throw new IllegalArgumentException("Invalid cell coordinates");
+        if (x < 0 || y < 0 || x == Integer.MAX_VALUE || y == Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid cell coordinates");
+        }
+        ensureSize(x + 1, y + 1);
+
+        if (Ex2Utils.Debug) System.out.println("Updating cell " + convertCoordinatesToCellName(x, y) + " with value: " + c);
+
+        boolean empty = c == null || c.trim().isEmpty();
+        if (empty) {
+            put(x, y, null, Ex2Utils.TEXT, NO_REFERENCES, null);
+        } else {
+            CellLexer lexer = CellLexer.classify(c); // a single pass over the content
+            put(x, y, content(c, lexer), lexer.getType(), lexer.getReferences(), compile(x, y, c, lexer));
+        }
+        if (journal != null) journal.record(x, y, empty ? null : c);
+        if (batchDepth == 0) recalculate(); // reevaluate only the cell and the cells depending on it
+    }
+
+    // the text kept for classified content: a number is kept in its canonical form
+    static String content(String c, CellLexer lexer) {
+        return lexer.getType() == Ex2Utils.NUMBER ? Double.toString(lexer.getNumber()) : c;
+    }
+
+    // the formula of classified content in the x,y cell, null if it is not a valid formula (safe from several threads)
+    Formula compile(int x, int y, String c, CellLexer lexer) {
+        return lexer.getType() == Ex2Utils.FORM ? Formula.compile(c, lexer, x, y, templates) : null;
+    }
+
+    // the number of distinct formula shapes compiled (e.g., a filled-down column is one shape)
+    public int templateCount() {
+        return templates.size();
+    }
+
+    /**
+     * Stores content that was already classified (see SheetLoader, which classifies in parallel), without recalculating.
+     * @param content the content (see content(c, lexer)), null for an empty cell.
+     * @param type the Ex2Utils type of the content.
+     * @param refs the keys of the cells the content references.
+     * @param formula the compiled formula, null if the content is not a valid formula.
+     */
+    void put(int x, int y, String content, int type, long[] refs, Formula formula) {
+        if (content == null && tiles.find(x, y) == -1) return; // never used, already empty
+        int slot = slot(x, y);
+        if (batchDepth > 0 && slot < undoSlotCount && undoIndex.get(slot) == -1) { // keep the cell as it was
+            undoIndex.put(slot, undoSlots.size());
+            undoSlots.add(slot);
+            undoContent.add(raw[slot]);
+        }
+        store(slot, content, type, refs, formula);
+    }
+
+    // set the content of the cell in the slot and determine its type (without evaluating anything)
+    private void store(int slot, String s) {
+        if (s == null) {
+            store(slot, null, Ex2Utils.TEXT, NO_REFERENCES, null);
+        } else {
+            CellLexer lexer = CellLexer.classify(s);
+            Formula formula = compile(tiles.x(slot), tiles.y(slot), s, lexer);
+            store(slot, content(s, lexer), lexer.getType(), lexer.getReferences(), formula);
+        }
+    }
+
+    // store classified content in the columns of the slot
+    private void store(int slot, String content, int type, long[] references, Formula formula) {
+        raw[slot] = content; // null for an empty cell
+        types[slot] = (byte) type;
+        if (formulas[slot] != null) subexpressions.remove(formulas[slot]);
+        if (formula != null) subexpressions.add(formula);
+        formulas[slot] = formula; // parsed once, evaluated many times
+        errors[slot] = type == Ex2Utils.ERR_FORM_FORMAT ? FORM_ERROR : NO_ERROR;
+        depths[slot] = 0;
+        cellChanged(slot, references); // update the cells this cell now references
+    }
+
+    /**
+     * Starts a batch of changes: set() only stores the new cells and the recalculation is deferred to commit().
+     * Batches can be nested, the cells are recalculated when the outermost batch is committed.
+     */
+    public void beginBatch() {
+        if (batchDepth++ == 0) {
+            if (journal != null) journal.beginBatch();
+            undoWidth = width;
+            undoHeight = height;
+            undoSlotCount = tiles.size();
+        }
+    }
+
+    // end a batch, once the outermost batch ends all the changed cells are recalculated (once)
+    public void commit() {
+        if (batchDepth == 0) throw new IllegalStateException("No batch to commit");
+        if (--batchDepth == 0) {
+            clearUndoLog();
+            recalculate();
+            if (journal != null) journal.commitBatch();
+        }
+    }
+
+    // undo all the changes made since the (outermost) batch began
+    public void rollback() {
+        if (batchDepth == 0) throw new IllegalStateException("No batch to roll back");
+        for (int k = 0; k < undoSlots.size(); k++) {
+            store(undoSlots.get(k), undoContent.get(k));
+        }
+        for (int slot = undoSlotCount; slot < tiles.size(); slot++) {
+            if (raw[slot] != null) store(slot, null);
+        }
+        clearUndoLog();
+        width = undoWidth; // cells set beyond the old size were emptied above
+        height = undoHeight;
+        batchDepth = 0;
+        recalculate();
+        if (journal != null) journal.rollbackBatch();
+    }
+
+    private void clearUndoLog() {
+        undoSlots.clear();
+        undoContent.clear();
+        undoIndex.clear();
+    }
+
+    // true while a batch is open
+    public boolean inBatch() {
+        return batchDepth > 0;
+    }
+
+    // set many cells at once (a single recalculation), if one of them fails none of them is changed
+    public void setAll(Map<Index2D, String> cells) {
+        int n = cells.size(), k = 0;
+        int[] xs = new int[n], ys = new int[n];
+        String[] contents = new String[n];
+        for (Map.Entry<Index2D, String> e : cells.entrySet()) {
+            xs[k] = e.getKey().getX();
+            ys[k] = e.getKey().getY();
+            contents[k++] = e.getValue();
+        }
+        setCells(xs, ys, contents, n);
+    }
+
+    /**
+     * Sets a block of cells at once (e.g., a paste), with a single recalculation.
+     * data[i][j] goes to the cell (x0+i, y0+j), null entries are skipped.
+     * If one of the cells fails none of them is changed.
+     */
+    public void setRange(int x0, int y0, String[][] data) {
+        int n = 0;
+        for (String[] column : data) {
+            for (String c : column) {
+                if (c != null) n++;
+            }
+        }
+        int[] xs = new int[n], ys = new int[n];
+        String[] contents = new String[n];
+        n = 0;
+        for (int i = 0; i < data.length; i++) {
+            for (int j = 0; j < data[i].length; j++) {
+                if (data[i][j] != null) {
+                    xs[n] = x0 + i;
+                    ys[n] = y0 + j;
+                    contents[n++] = data[i][j];
+                }
+            }
+        }
+        setCells(xs, ys, contents, n);
+    }
+
+    /**
+     * Sets the cells in order as one batch. If one of them fails, the cells set by this call are restored
+     * and the exception is rethrown: on its own the batch is rolled back, inside a caller's batch only the cells of
+     * this call are set back (the caller's earlier changes and its batch are kept).
+     */
+    private void setCells(int[] xs, int[] ys, String[] contents, int n) {
+        boolean nested = batchDepth > 0;
+        int oldWidth = width, oldHeight = height;
+        String[] previous = nested ? new String[n] : null;
+        beginBatch();
+        int done = 0;
+        try {
+            for (; done < n; done++) {
+                if (nested) previous[done] = contentAt(xs[done], ys[done]);
+                set(xs[done], ys[done], contents[done]);
+            }
+        } catch (RuntimeException e) {
+            if (!nested) {
+                rollback();
+                throw e;
+            }
+            for (int k = Math.min(done, n - 1); k >= 0; k--) { // the failed cell too, in case it was changed
+                if (xs[k] >= 0 && ys[k] >= 0 && xs[k] != Integer.MAX_VALUE && ys[k] != Integer.MAX_VALUE) {
+                    set(xs[k], ys[k], previous[k]);
+                }
+            }
+            width = oldWidth; // cells set beyond the old size were emptied above
+            height = oldHeight;
+            commit(); // the caller's batch is still open
+            throw e;
+        }
+        commit();
+    }
+
+    // the content of the x,y cell as stored, null if it is empty (or can not be a cell)
+    private String contentAt(int x, int y) {
+        if (x < 0 || y < 0) return null;
+        int slot = tiles.find(x, y);
+        return slot == -1 ? null : raw[slot];
+    }
+
+    // called whenever the content of a cell changes: update its edges and mark it (and its dependents) dirty
+    private void cellChanged(int cell, long[] refs) {
+        setReferences(cell, refs);
+        graph.collectAffected(cell, dirty, dirtyCells);
+    }
+
+    // replace the references of the cell: edges to the cells with slots, the others wait for their slot (see resolve)
+    private void setReferences(int cell, long[] refs) {
+        long[] old = unresolved.remove(cell);
+        if (old != null) {
+            for (long key : old) {
+                IntList deps = waiting.get(key);
+                deps.removeValue(cell);
+                if (deps.isEmpty()) waiting.remove(key);
+            }
+        }
+        graph.setReferences(cell, referenceIndices(cell, refs));
+    }
+
+    // the (distinct) slots of the referenced cells that have one, the other cells (also out of the sheet, evaluated
+    // as an error until the sheet grows) are only looked up: the cell waits for them instead
+    private int[] referenceIndices(int cell, long[] refs) {
+        if (refs.length == 0) return null;
+        IntList ans = new IntList(refs.length);
+        long[] keys = null;
+        int n = 0;
+        for (long ref : refs) {
+            int i = tiles.find(CellKey.x(ref), CellKey.y(ref));
+            boolean seen = false;
+            if (i == -1) {
+                for (int k = 0; k < n && !seen; k++) seen = keys[k] == ref;
+                if (seen) continue;
+                if (keys == null) keys = new long[refs.length];
+                keys[n++] = ref;
+                waiting.computeIfAbsent(ref, key -> new IntList(4)).add(cell);
+                continue;
+            }
+            for (int k = 0; k < ans.size() && !seen; k++) seen = ans.get(k) == i;
+            if (!seen) ans.add(i);
+        }
+        if (n > 0) unresolved.put(cell, Arrays.copyOf(keys, n));
+        return ans.toArray();
+    }
+
+    // recompute all the dirty cells, each one after the cells it references
+    public void recalculate() {
+        if (dirtyCells.isEmpty()) return;
+        IntList cells = new IntList(dirtyCells.size());
+        for (int i = 0; i < dirtyCells.size(); i++) {
+            int c = dirtyCells.get(i);
+            if (dirty[c]) { // not computed on demand in the meantime
+                dirty[c] = false;
+                cells.add(c);
+            }
+        }
+        dirtyCells.clear();
+        recalculate(cells.toArray(), cells.size());
+    }
+
+    // recompute the given cells in the order given by the Tarjan pass, no recursion so chains are limited only by the heap
+    private void recalculate(int[] cells, int n) {
+        int[] order = new int[n];
+        graph.order(cells, n, order);
+        int outer = recalculation; // a recalculation on demand may run inside another one
+        boolean parallel = pool != null && n >= PARALLEL_THRESHOLD;
+        // the workers of a parallel recalculation do not share subexpression values (see Formula.Subexpressions)
+        recalculation = parallel ? 0 : ++recalculations == 0 ? ++recalculations : recalculations;
+        try {
+            if (parallel) {
+                recalculateParallel(order);
+                return;
+            }
+            for (int c : order) {
+                if (c < 0) {
+                    markCycle(~c); // a member of a cycle
+                } else {
+                    computeCell(c);
+                }
+            }
+        } finally {
+            recalculation = outer;
+        }
+    }
+
+    /**
+     * The current recalculation, 0 while the cells are not recalculated (or are recalculated in parallel).
+     * The values of the shared subexpressions (see Formula.Subexpressions) are kept for the recalculation they were
+     * computed in: no cell changes during a recalculation, and a cell is computed after the cells it references.
+     */
+    int recalculationStamp() {
+        return recalculation;
+    }
+
+    // the number of distinct subexpressions used by more than one cell (or more than once in a cell)
+    public int sharedSubexpressionCount() {
+        return subexpressions.sharedCount();
+    }
+
+    // the number of times the value of a shared subexpression was reused instead of computed
+    public long subexpressionReuses() {
+        return subexpressions.reuses();
+    }
+
+    /**
+     * Turns the parallel recalculation on (or off).
+     * In parallel mode each dirty cell of a large recalculation becomes a task on the pool, which is started
+     * as soon as all the cells it references are done; idle workers steal tasks from busy ones.
+     * The results are the same as in the sequential mode.
+     * @param pool the pool to run on (e.g., ForkJoinPool.commonPool()), null for the sequential mode.
+     */
+    public void setParallel(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    // compute the (already ordered) cells as a graph of tasks: a cell is forked once its last precedent is done
+    private void recalculateParallel(int[] order) {
+        int[] pos = new int[raw.length]; // position of a cell in order + 1, 0 if the cell is not computed now
+        for (int k = 0; k < order.length; k++) {
+            if (order[k] < 0) {
+                markCycle(~order[k]); // cycle members are known already, their dependents will see depth -1
+            } else {
+                pos[order[k]] = k + 1;
+            }
+        }
+        AtomicIntegerArray pending = new AtomicIntegerArray(order.length); // precedents not computed yet
+        IntList ready = new IntList();
+        for (int k = 0; k < order.length; k++) {
+            if (order[k] < 0) continue;
+            int count = 0;
+            for (int ref : graph.precedents(order[k])) {
+                if (pos[ref] != 0) count++;
+            }
+            pending.set(k, count);
+            if (count == 0) ready.add(order[k]);
+        }
+        @SuppressWarnings("serial") // never serialized, like CellTask
+        CountedCompleter<Void> root = new CountedCompleter<Void>() {
+            @Override
+            public void compute() {
+                for (int k = 0; k < ready.size(); k++) {
+                    addToPendingCount(1);
+                    new CellTask(this, ready.get(k), pos, pending).fork();
+                }
+                tryComplete();
+            }
+        };
+        pool.invoke(root);
+    }
 
-        // using convertCoordinatesToCellName
-        String cellName = convertCoordinatesToCellName(x, y);
-        System.out.println("Updating cell " + cellName + " with value: " + c);
+    // computes one cell, then forks the dependents for which it was the last precedent
+    // (ForkJoinTask is Serializable, but the tasks only live during one recalculation)
+    @SuppressWarnings("serial")
+    private final class CellTask extends CountedCompleter<Void> {
+        private final int cell;
+        private final int[] pos;
+        private final AtomicIntegerArray pending;
 
-        table[x][y] = new SCell(c, this, convertCoordinatesToCellName(x,y)); // update the cell content
-        eval(); // reevaluate all cells in the sheet
-        int xyo= 0;
+        CellTask(CountedCompleter<?> parent, int cell, int[] pos, AtomicIntegerArray pending) {
+            super(parent);
+            this.cell = cell;
+            this.pos = pos;
+            this.pending = pending;
+        }
+
+        @Override
+        public void compute() {
+            computeCell(cell);
+            for (int k = 0; k < graph.dependentCount(cell); k++) {
+                int dep = graph.dependent(cell, k);
+                if (pos[dep] != 0 && pending.decrementAndGet(pos[dep] - 1) == 0) {
+                    addToPendingCount(1);
+                    new CellTask(this, dep, pos, pending).fork();
+                }
+            }
+            tryComplete();
+        }
     }
 
+    // cells on a cycle (or depending on one) can not be computed
+    private void markCycle(int c) {
+        versions[c]++;
+        setKind(c, ERR_CYCLE_VALUE);
+        depths[c] = -1;
+        if (raw[c] != null) types[c] = (byte) Ex2Utils.ERR_CYCLE_FORM;
+    }
 
 
-    // get a cell by its coordinates
+    // get a cell by its coordinates, an empty cell is the shared EmptyCell
     @Override
     public Cell get(int x, int y) {
         if (!isIn(x, y)) return null;
-        return table[x][y];
+        int slot = tiles.find(x, y);
+        if (slot == -1 || raw[slot] == null) return EmptyCell.INSTANCE;
+        return new SCell(this, slot, x, y); // a view of the columns
+    }
+
+    // ****** the columns of a cell, as seen through its SCell view ******
+
+    // the content of the cell, or its error message
+    String cellData(int slot) {
+        return data(errors[slot], raw[slot]);
+    }
+
+    // the content of a cell with the given error code, or the error message
+    static String data(byte error, String content) {
+        switch (error) {
+            case FORM_ERROR:
+                return Ex2Utils.ERR_FORM;
+            case CYCLE_ERROR:
+                return Ex2Utils.ERR_CYCLE;
+            default:
+                return content == null ? Ex2Utils.EMPTY_CELL : content;
+        }
+    }
+
+    String cellLine(int slot) {
+        return raw[slot] == null ? Ex2Utils.EMPTY_CELL : raw[slot];
+    }
+
+    int cellType(int slot) {
+        return types[slot];
+    }
+
+    void setCellType(int slot, int type) {
+        types[slot] = (byte) type;
+    }
+
+    int cellOrder(int slot) {
+        return depths[slot];
+    }
+
+    void setCellOrder(int slot, int order) {
+        depths[slot] = order;
+    }
+
+    // only the messages of Ex2Utils can be stored ("" clears the error)
+    void setCellError(int slot, String err) {
+        if (err == null || err.isEmpty()) {
+            errors[slot] = NO_ERROR;
+        } else if (err.equals(Ex2Utils.ERR_FORM)) {
+            errors[slot] = FORM_ERROR;
+        } else if (err.equals(Ex2Utils.ERR_CYCLE)) {
+            errors[slot] = CYCLE_ERROR;
+        } else {
+            throw new IllegalArgumentException("Unknown error: " + err);
+        }
+        versions[slot]++; // the data of a text value changed
     }
 
     // get a cell by its name ("b1","A1")
     @Override
     public Cell get(String entry) {
-        int[] coords = parseCoordinates(entry); // parse name to coordinates
-        return get(coords[0], coords[1]); // use get(int x, int y)
+        long key = CellKey.parse(entry); // parse name to coordinates, null for an illegal name
+        return key == CellKey.NONE ? null : get(CellKey.x(key), CellKey.y(key)); // use get(int x, int y)
     }
 
 
-    // return the evaluated value of a cell
+    // return the evaluated value of a cell (empty out of the sheet)
     @Override
     public String value(int x, int y) {
-        Cell cell = get(x, y);
-        if (cell == null) return Ex2Utils.EMPTY_CELL; // return empty if the cell is null
+        if (!isIn(x, y)) return Ex2Utils.EMPTY_CELL;
         return eval(x, y); // evaluate the cell and return its value
     }
 
-    private Set<String> evaluatingCells = new HashSet<>(); // track cells currently being evaluated
-
-    // evaluate a specific cell
+    // evaluate a specific cell, the string is built once per computed value (for display / save)
     @Override
     public String eval(int x, int y) {
-        Cell cell = get(x, y);
-        String cellName = convertCoordinatesToCellName(x, y);
-
-        if (cellName.equals(cell.getLine())) {
-            cell.setType(Ex2Utils.ERR_CYCLE_FORM);
-            return Ex2Utils.ERR_CYCLE;
+        int i = ensureComputed(x, y);
+        if (i == -1) return Ex2Utils.EMPTY_CELL;
+        if (shown[i] != null && shownVersions[i] == versions[i]) {
+            cacheHits++;
+            if (shownCache != null) shownCache.touch(i);
+            return shown[i];
         }
+        cacheMisses++;
+        if (shownCache != null && shownVersions[i] == versions[i]) cacheRecomputes++; // its string was evicted
+        String ans = display(kinds[i], numbers[i], cellData(i));
+        shown[i] = ans;
+        shownVersions[i] = versions[i];
+        if (shownCache != null) shownCache.put(i, 40 + ans.length(), slot -> shown[slot] = null); // ~ a String
+        return ans;
+    }
 
+    /**
+     * Bounds the cached value strings (see eval), for sheets with very many cells: the strings are kept within
+     * (about) the given number of bytes, the least recently used ones are evicted (CLOCK) and built again from the
+     * computed value when they are needed. The bookkeeping of the cache grows with the strings it keeps, not with
+     * the sheet. This is a bound on the strings only: the columns of the cells (their content, their computed value
+     * and the reference to their string) are kept for every used cell in any case.
+     * An evicted string never recomputes a formula, the computed values stay in the value columns.
+     * @param bytes the budget, 0 (or less) for no bound.
+     */
+    public void setValueCacheBudget(long bytes) {
+        Arrays.fill(shown, null);
+        Arrays.fill(shownVersions, 0); // dropped, not evicted
+        shownCache = bytes > 0 ? new ClockCache(bytes) : null;
+    }
 
-        // check for circular references
-        if (!cell.getLine().isEmpty() && cellName.contains(cell.getLine())) {
-            cell.setType(Ex2Utils.ERR_FORM_FORMAT); // set the cell type to cycle error
-            return Ex2Utils.ERR_FORM; // return cycle error
-        }
+    // number of strings evicted by the value cache budget, and number of them built again
+    public long cacheEvictions() {
+        return shownCache == null ? 0 : shownCache.evictions();
+    }
 
-        if (evaluatingCells.contains(cell.getLine())) { // Detect cyclic dependencies.
-            cell.setType(Ex2Utils.ERR_CYCLE_FORM);
-            return Ex2Utils.ERR_CYCLE;
-        }
+    public long cacheRecomputes() {
+        return cacheRecomputes;
+    }
 
+    // number of eval/value calls answered from the cached strings, and the number of strings built
+    public long cacheHits() {
+        return cacheHits;
+    }
 
-        evaluatingCells.add(cellName); // mark the cell as being evaluated
+    public long cacheMisses() {
+        return cacheMisses;
+    }
 
-        if (cell == null || cell.getData() == null || cell.getData().isEmpty()) {
-            evaluatingCells.remove(cellName); // remove the cell from evaluation tracking
-            return Ex2Utils.EMPTY_CELL; // return empty value
+    public void resetCacheStats() {
+        cacheHits = 0;
+        cacheMisses = 0;
+        cacheRecomputes = 0;
+        if (shownCache != null) shownCache.resetStats();
+    }
+
+    // the string of a computed value, data is the content of the cell (or its error message, see data)
+    static String display(byte kind, double number, String data) {
+        switch (kind) {
+            case NUMBER_VALUE:
+                return Double.toString(number);
+            case TEXT_VALUE:
+                return data;
+            case ERR_FORM_VALUE:
+                return Ex2Utils.ERR_FORM;
+            case ERR_CYCLE_VALUE:
+                return Ex2Utils.ERR_CYCLE;
+            default:
+                return Ex2Utils.EMPTY_CELL;
         }
+    }
 
-        // if the cell contains a formula, calculate its value
-        if (cell.getType() == Ex2Utils.FORM) {
-            try {
-                double result = Utils.computeForm(cell.getData(), this); // calculate the formula
-                evaluatingCells.remove(cellName);  // remove from tracking
-                return Double.toString(result); // return the result as string
-            } catch (IllegalArgumentException e) {
-                handleInvalidFormula(cell, cellName); // handle invalid formulas
-                return Ex2Utils.ERR_FORM; // return formula error
+    /**
+     * Returns the computed number of a cell, without going through its String value.
+     * @param x integer, x-coordinate of the cell.
+     * @param y integer, y-coordinate of the cell.
+     * @return the number in the cell (or the result of its formula).
+     * @throws IllegalArgumentException if the cell is out of this sheet, empty, or does not hold a number.
+     */
+    @Override
+    public double evalNumber(int x, int y) {
+        if (!isIn(x, y)) {
+            throw new IllegalArgumentException("Formula contains a reference out of the sheet: "
+                    + convertCoordinatesToCellName(x, y));
+        }
+        int i = ensureComputed(x, y);
+        if (i != -1 && kinds[i] == NUMBER_VALUE) return numbers[i];
+        if (i == -1 || kinds[i] == EMPTY_VALUE) {
+            throw new IllegalArgumentException("Formula contains a reference to an empty cell: "
+                    + convertCoordinatesToCellName(x, y));
+        }
+        throw new IllegalArgumentException("Formula contains a reference to a non numeric cell: "
+                + convertCoordinatesToCellName(x, y));
+    }
+
+    // the kind of the computed value of a cell (one of the *_VALUE constants)
+    public byte valueKind(int x, int y) {
+        int i = ensureComputed(x, y);
+        return i == -1 ? EMPTY_VALUE : kinds[i];
+    }
+
+    // compute the cell now if its value is out of date (e.g., during a batch), returns its slot (-1: never used)
+    private int ensureComputed(int x, int y) {
+        int cell = tiles.find(x, y);
+        if (cell == -1 || !dirty[cell]) return cell;
+
+        // the dirty cells this cell depends on, found with an explicit stack (a clean cell never depends on a dirty one)
+        IntList needed = new IntList();
+        IntList work = new IntList();
+        dirty[cell] = false;
+        needed.add(cell);
+        work.add(cell);
+        while (!work.isEmpty()) {
+            for (int ref : graph.precedents(work.pop())) {
+                if (dirty[ref]) {
+                    dirty[ref] = false;
+                    needed.add(ref);
+                    work.add(ref);
+                }
             }
         }
-        evaluatingCells.remove(cellName); // remove from tracking after processing
-        return cell.getData(); // return raw data for non-formula cells
+        recalculate(needed.toArray(), needed.size());
+        return cell;
     }
 
+    // compute the value of the cell in slot i into the value columns (referenced cells are read through evalNumber)
+    private void computeCell(int i) {
+        versions[i]++;
+        String line = raw[i];
+        if (line == null) { // emptied
+            depths[i] = 0;
+            setKind(i, EMPTY_VALUE);
+            return;
+        }
+        // a formula marked as an error by an earlier recalculation (not by its own content) is a formula again
+        if (formulas[i] != null) types[i] = (byte) Ex2Utils.FORM;
+
+        // depth: 0 for a none formula, else 1 + the max depth of the referenced cells (-1 behind a cycle)
+        depths[i] = 0; // also the "number of rounds" needed to compute this cell (its order)
+        int type = types[i];
+        if (type == Ex2Utils.FORM) {
+            int maxDepth = 0;
+            for (int ref : graph.precedents(i)) {
+                if (depths[ref] == -1) {
+                    markCycle(i);
+                    return;
+                }
+                maxDepth = Math.max(maxDepth, depths[ref]);
+            }
+            depths[i] = maxDepth + 1;
+        }
 
-    // handle invalid formulas
-    private void handleInvalidFormula(Cell cell, String cellName) {
-        if (get(cellName) != cell) {
-            System.out.println("Invalid formula in cell " + cellName);
-            cell.setType(Ex2Utils.ERR_FORM_FORMAT); // set the type to formula format error
-            cell.setData(Ex2Utils.ERR_FORM);// set the cell content to error
+        if (type == Ex2Utils.TEXT) {
+            long key = CellKey.pack(tiles.x(i), tiles.y(i));
+            if (CellKey.nameEquals(key, line)) { // the text is the cell's own name
+                types[i] = (byte) Ex2Utils.ERR_CYCLE_FORM;
+                setKind(i, ERR_CYCLE_VALUE);
+                return;
+            }
+            // check for circular references
+            if (CellKey.nameContains(key, line)) {
+                types[i] = (byte) Ex2Utils.ERR_FORM_FORMAT; // set the cell type to cycle error
+                setKind(i, ERR_FORM_VALUE); // return cycle error
+                return;
+            }
+        }
 
-            evaluatingCells.remove(cellName); // remove from evaluation tracking
+        if (type == Ex2Utils.FORM) {
+            // the cell contains a formula, calculate its value
+            try {
+                numbers[i] = formulas[i].evaluate(this); // calculate the formula
+                kinds[i] = NUMBER_VALUE;
+            } catch (IllegalArgumentException e) {
+                types[i] = (byte) Ex2Utils.ERR_FORM_FORMAT; // e.g., a reference to an empty or a text cell
+                setKind(i, ERR_FORM_VALUE); // formula error
+            }
+        } else if (type == Ex2Utils.NUMBER) {
+            numbers[i] = Double.parseDouble(line);
+            kinds[i] = NUMBER_VALUE;
+        } else if (type == Ex2Utils.TEXT) {
+            setKind(i, TEXT_VALUE);
+        } else if (type == Ex2Utils.ERR_CYCLE_FORM) {
+            setKind(i, ERR_CYCLE_VALUE);
+        } else {
+            setKind(i, ERR_FORM_VALUE);
         }
     }
 
+    // a value without a number
+    private void setKind(int i, byte kind) {
+        kinds[i] = kind;
+        numbers[i] = 0;
+    }
 
     @Override
-    // reevaluate all cells in the sheet
+    // reevaluate all cells in the sheet (only the used cells have slots)
     public void eval() {
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height; j++) {
-                eval(i, j); // reevaluate each cell
+        for (int c = 0; c < tiles.size(); c++) {
+            if (!dirty[c]) {
+                dirty[c] = true;
+                dirtyCells.add(c);
             }
         }
+        recalculate();
     }
 
     @Override
-    // calculate the depth of dependencies for all cells
+    // the depth of dependencies of all cells, kept up to date by the recalculation (cycles were found by Tarjan)
     public int[][] depth() {
-        int[][] depths = new int[width][height];
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height; j++) {
-                depths[i][j] = computeDepth(i, j, new HashSet<>());
-            }
+        recalculate();
+        int[][] ans = new int[width][height];
+        for (int c = 0; c < tiles.size(); c++) {
+            if (raw[c] != null) ans[tiles.x(c)][tiles.y(c)] = depths[c];
         }
-        return depths;
+        return ans;
     }
 
-    // recursively compute the depth of dependencies for a cell
-    private int computeDepth(int x, int y, Set<String> visited) {
-        if (!isIn(x, y)) return 0;
-        Cell cell = get(x, y);
-        if (cell.getData() == null || cell.getType() != Ex2Utils.FORM) return 0;
-
-        String cellKey = x + "," + y;
-        if (visited.contains(cellKey)) return -1; // detect circular references
-
-        visited.add(cellKey);
-        String formula = cell.getData().substring(1); // remove '=' from the formula
-        int maxDepth = 0;
-        // split formula into references
-        for (String ref : formula.split("[^A-Za-z0-9]+")) {
-            // check if valid cell reference
-            if (ref.matches("[A-Z][0-9]+")) {
-                int[] coords = parseCoordinates(ref);
-                int depth = computeDepth(coords[0], coords[1], visited);
-                if (depth == -1) return -1; // propagate circular reference
-                maxDepth = Math.max(maxDepth, depth);
-            }
-        }
-
-        visited.remove(cellKey); // remove from visited set
-        return maxDepth + 1; // return the depth
+    /**
+     * The dependency depth of a single cell (as in depth()), without building the whole matrix.
+     * Depths are maintained incrementally: a cell's depth is updated only when it is recomputed,
+     * i.e. when it or one of its precedents changed.
+     * @param x integer, x-coordinate of the cell.
+     * @param y integer, y-coordinate of the cell.
+     * @return the depth of the cell, -1 if it is on (or depends on) a circular reference.
+     */
+    public int depth(int x, int y) {
+        if (!isIn(x, y)) throw new IllegalArgumentException("Invalid cell coordinates");
+        int i = ensureComputed(x, y);
+        return i == -1 ? 0 : depths[i];
     }
 
     @Override
@@ -193,37 +853,286 @@ public class Ex2Sheet implements Sheet {
     public void save(String fileName) throws IOException {
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileName))) {
             writer.write("I2CS ArielU: SpreadSheet (Ex2) assignment - this line should be ignored\n");
-            for (int i = 0; i < width; i++) {
-                for (int j = 0; j < height; j++) {
-                    Cell cell = table[i][j];
-                    if (cell != null && cell.getData() != null && !cell.getData().trim().isEmpty()) {
-                        writer.write(i + "," + j + "," + cell.getData() + "\n");
-                    }
+            for (int c = 0; c < tiles.size(); c++) { // a sequential scan of the used cells
+                if (raw[c] != null && !raw[c].trim().isEmpty()) {
+                    writer.write(tiles.x(c) + "," + tiles.y(c) + "," + cellData(c) + "\n");
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves the sheet in the text format of save, optionally in dependency order with the computed values:
+     * every cell comes after the cells it references (the cells on a cycle come last), each cell with references
+     * is followed by a "#value,x,y,kind,number,depth" line, and the file ends with a "#hash,..." line
+     * (see SheetLoader). load uses the stored values as they are if the file was not changed since,
+     * other readers of the format skip these lines.
+     * @param ordered false: the same as save(fileName).
+     */
+    public void save(String fileName, boolean ordered) throws IOException {
+        if (!ordered) {
+            save(fileName);
+            return;
+        }
+        recalculate();
+        IntList used = new IntList();
+        for (int c = 0; c < tiles.size(); c++) {
+            if (raw[c] != null && !raw[c].trim().isEmpty()) used.add(c);
+        }
+        long[] order = new long[used.size()]; // depth (cycles last), then slot
+        for (int k = 0; k < used.size(); k++) {
+            int c = used.get(k);
+            order[k] = (long) (depths[c] < 0 ? Integer.MAX_VALUE : depths[c]) << 32 | c;
+        }
+        Arrays.sort(order);
+
+        Charset charset = Charset.defaultCharset(); // as FileWriter in save
+        long hash = 0;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(fileName))) {
+            out.write("I2CS ArielU: SpreadSheet (Ex2) assignment - this line should be ignored\n".getBytes(charset));
+            for (long o : order) {
+                int c = (int) o;
+                hash = writeLine(out, tiles.x(c) + "," + tiles.y(c) + "," + cellData(c), charset, hash);
+                if (graph.precedents(c).length > 0) {
+                    hash = writeLine(out, SheetLoader.VALUE_PREFIX + tiles.x(c) + "," + tiles.y(c) + "," + kinds[c]
+                            + "," + numbers[c] + "," + depths[c], charset, hash);
                 }
             }
+            out.write((SheetLoader.HASH_PREFIX + Long.toHexString(hash) + "\n").getBytes(charset));
+        }
+    }
+
+    // write a line and return the hash of the lines so far
+    private static long writeLine(OutputStream out, String line, Charset charset, long hash) throws IOException {
+        byte[] bytes = line.getBytes(charset);
+        out.write(bytes);
+        out.write('\n');
+        return hash * SheetLoader.HASH_MULTIPLIER + SheetLoader.hashLine(bytes, 0, bytes.length);
+    }
+
+    // use the value stored in a file for a loaded cell (see SheetLoader), the cell is no longer dirty
+    void restoreValue(int x, int y, byte kind, double number, int depth) {
+        int i = tiles.find(x, y);
+        if (i == -1 || raw[i] == null) return;
+        kinds[i] = kind;
+        numbers[i] = number;
+        depths[i] = depth;
+        versions[i]++;
+        if (kind == ERR_CYCLE_VALUE) {
+            types[i] = (byte) Ex2Utils.ERR_CYCLE_FORM;
+        } else if (formulas[i] != null) {
+            types[i] = (byte) (kind == NUMBER_VALUE ? Ex2Utils.FORM : Ex2Utils.ERR_FORM_FORMAT);
         }
+        dirty[i] = false;
     }
 
     @Override
-    // load a sheet from a file
+    // load a sheet from a file: parsed and classified in parallel, then all the cells are recalculated once
+    // (if it fails the sheet is kept as it was, inside a caller's batch that batch stays open)
     public void load(String fileName) throws IOException {
-        try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
-            reader.readLine(); // skip header
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",", 3);
-                if (parts.length >= 3) {
-                    try {
-                        int x = Integer.parseInt(parts[0]);
-                        int y = Integer.parseInt(parts[1]);
-                        String data = parts[2];
-                        set(x, y, data); // set the value to the cell
-                    } catch (NumberFormatException ignored) {
-                    }
+        boolean nested = batchDepth > 0;
+        int oldWidth = width, oldHeight = height;
+        IntList previous = new IntList(); // inside a caller's batch: the slots in use before the load
+        List<String> contents = new ArrayList<>();
+        if (nested) {
+            for (int slot = 0; slot < tiles.size(); slot++) {
+                if (raw[slot] != null) {
+                    previous.add(slot);
+                    contents.add(raw[slot]);
                 }
             }
         }
-        eval(); // reevaluate after loading
+        beginBatch();
+        try {
+            clear();
+            templates.clear(); // the shapes of the old cells (the cells keep their own programs)
+            new SheetLoader(this, pool != null ? pool : ForkJoinPool.commonPool()).load(fileName);
+        } catch (IOException | RuntimeException e) {
+            if (!nested) {
+                rollback(); // keep the sheet as it was before the load
+                reclaim();
+                throw e;
+            }
+            clear(); // undo only the load, the cells are put back as they were (not journaled, as the load)
+            for (int k = 0; k < previous.size(); k++) {
+                int slot = previous.get(k);
+                String c = contents.get(k);
+                CellLexer lexer = CellLexer.classify(c);
+                put(tiles.x(slot), tiles.y(slot), c, lexer.getType(), lexer.getReferences(),
+                        compile(tiles.x(slot), tiles.y(slot), c, lexer));
+            }
+            width = oldWidth;
+            height = oldHeight;
+            commit(); // the caller's batch is still open
+            throw e;
+        }
+        commit();
+        if (!nested) reclaim(); // the slots of the old cells
+        if (journal != null) journal.replaced(); // a load is not journaled cell by cell
+    }
+
+    // journal the edits of this sheet (see SheetJournal), null to stop
+    void setJournal(SheetJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Saves the sheet as a binary snapshot (see SheetSnapshot): the cells with their compiled formulas and values,
+     * so loadSnapshot does not need to parse or recalculate anything.
+     */
+    public void saveSnapshot(String fileName) throws IOException {
+        SheetSnapshot.save(this, fileName);
+    }
+
+    /**
+     * Replaces the sheet with a snapshot written by saveSnapshot, its values are used as they are.
+     * @throws IOException if the file is not a valid snapshot, the sheet is not changed then.
+     * @throws IllegalStateException during a batch (a snapshot can not be rolled back).
+     */
+    public void loadSnapshot(String fileName) throws IOException {
+        if (batchDepth > 0) throw new IllegalStateException("Can not load a snapshot during a batch");
+        SheetSnapshot.load(this, fileName);
+        if (journal != null) journal.replaced();
+    }
+
+    // ****** the cells as stored in a snapshot ******
+
+    // number of slots, the slots are 0..slotCount()-1
+    int slotCount() {
+        return tiles.size();
+    }
+
+    int slotX(int slot) {
+        return tiles.x(slot);
+    }
+
+    int slotY(int slot) {
+        return tiles.y(slot);
+    }
+
+    // true iff the cell in the slot is not empty
+    boolean isUsed(int slot) {
+        return raw[slot] != null;
+    }
+
+    // copy the cell in the slot (which should be computed) into the i-th cell of a snapshot block
+    void exportCell(int slot, SheetSnapshot.Block b, int i) {
+        b.xs[i] = tiles.x(slot);
+        b.ys[i] = tiles.y(slot);
+        b.types[i] = types[slot];
+        b.errors[i] = errors[slot];
+        b.contents[i] = raw[slot];
+        int[] refs = graph.precedents(slot);
+        long[] keys = unresolved.getOrDefault(slot, NO_REFERENCES);
+        b.refs[i] = Arrays.copyOf(keys, refs.length + keys.length);
+        for (int k = 0; k < refs.length; k++) {
+            b.refs[i][keys.length + k] = CellKey.pack(tiles.x(refs[k]), tiles.y(refs[k]));
+        }
+        b.formulas[i] = formulas[slot];
+        b.kinds[i] = kinds[slot];
+        b.numbers[i] = numbers[slot];
+        b.depths[i] = depths[slot];
+    }
+
+    /**
+     * Replaces all the cells with the cells of a snapshot: the columns are filled as they are and nothing is marked
+     * dirty, unless the snapshot has no values (then all the cells are recalculated once).
+     */
+    void restore(int width, int height, List<SheetSnapshot.Block> blocks, boolean values) {
+        int count = 0;
+        for (SheetSnapshot.Block b : blocks) count += b.size;
+        tiles = new TileIndex();
+        graph = new DependencyGraph(0);
+        waiting.clear();
+        unresolved.clear();
+        dirtyCells.clear();
+        templates.clear();
+        subexpressions.clear();
+        resize(0); // drop the old cells
+        if (shownCache != null) shownCache.clear();
+        resize(count);
+        this.width = width;
+        this.height = height;
+        for (SheetSnapshot.Block b : blocks) {
+            for (int i = 0; i < b.size; i++) {
+                ensureSize(b.xs[i] + 1, b.ys[i] + 1);
+                int slot = slot(b.xs[i], b.ys[i]);
+                raw[slot] = b.contents[i];
+                types[slot] = b.types[i];
+                errors[slot] = b.errors[i];
+                formulas[slot] = b.formulas[i];
+                if (b.formulas[i] != null) subexpressions.add(b.formulas[i]);
+                kinds[slot] = b.kinds[i];
+                numbers[slot] = b.numbers[i];
+                depths[slot] = b.depths[i];
+                versions[slot]++; // a new value, its string was never built
+            }
+        }
+        for (SheetSnapshot.Block b : blocks) { // all the cells have slots, now the edges between them
+            for (int i = 0; i < b.size; i++) {
+                setReferences(tiles.find(b.xs[i], b.ys[i]), b.refs[i]);
+            }
+        }
+        if (!values) eval();
+    }
+
+    // empty all the none empty cells (in the load's batch, not journaled: the load is journaled as a checkpoint),
+    // their slots are reclaimed once no batch is open (see reclaim)
+    private void clear() {
+        for (int c = 0; c < tiles.size(); c++) {
+            if (raw[c] != null) put(tiles.x(c), tiles.y(c), null, Ex2Utils.TEXT, NO_REFERENCES, null);
+        }
+    }
+
+    /**
+     * Drops the slots of the empty cells: the used cells get new slots (in their old order) and the columns and the
+     * graph are rebuilt for them, references to the dropped cells wait for them again (see resolve).
+     * Only outside of a batch (the undo log keeps slots), when the cells are computed.
+     */
+    private void reclaim() {
+        int n = tiles.size(), used = 0;
+        for (int c = 0; c < n; c++) {
+            if (raw[c] != null) used++;
+        }
+        if (used == n) return;
+        TileIndex old = tiles;
+        int[] moved = new int[used]; // new slot -> old slot
+        long[][] refs = new long[used][];
+        tiles = new TileIndex();
+        for (int c = 0; c < n; c++) {
+            if (raw[c] == null) continue;
+            int slot = tiles.slot(old.x(c), old.y(c));
+            moved[slot] = c;
+            int[] precedents = graph.precedents(c);
+            long[] keys = unresolved.getOrDefault(c, NO_REFERENCES);
+            refs[slot] = Arrays.copyOf(keys, keys.length + precedents.length);
+            for (int k = 0; k < precedents.length; k++) {
+                refs[slot][keys.length + k] = CellKey.pack(old.x(precedents[k]), old.y(precedents[k]));
+            }
+        }
+        String[] oldRaw = raw;
+        byte[] oldTypes = types, oldErrors = errors, oldKinds = kinds;
+        Formula[] oldFormulas = formulas;
+        double[] oldNumbers = numbers;
+        int[] oldDepths = depths, oldVersions = versions;
+        graph = new DependencyGraph(0);
+        waiting.clear();
+        unresolved.clear();
+        resize(0);
+        if (shownCache != null) shownCache.clear(); // the strings are built again
+        resize(used);
+        for (int slot = 0; slot < used; slot++) {
+            int c = moved[slot];
+            raw[slot] = oldRaw[c];
+            types[slot] = oldTypes[c];
+            errors[slot] = oldErrors[c];
+            formulas[slot] = oldFormulas[c];
+            kinds[slot] = oldKinds[c];
+            numbers[slot] = oldNumbers[c];
+            depths[slot] = oldDepths[c];
+            versions[slot] = oldVersions[c];
+        }
+        for (int slot = 0; slot < used; slot++) setReferences(slot, refs[slot]);
     }
 
     // parse cell reference (e.g., "A1") into coordinates
@@ -232,24 +1141,19 @@ public class Ex2Sheet implements Sheet {
             throw new IllegalArgumentException("Cell reference cannot be null or empty.");
         }
 
-        char col = cellRef.charAt(0);
-        if (col < 'A' || col > 'Z') {
+        int letters = CellKey.scanLetters(cellRef, 0, cellRef.length());
+        if (letters == 0) {
             throw new IllegalArgumentException("Invalid column in cell reference: " + cellRef);
         }
-
-        String rowPart = cellRef.substring(1); // extract the row part
-        try {
-            int row = Integer.parseInt(rowPart); // parse the row
-            int colIndex = col - 'A';// calculate the column index
-            return new int[]{colIndex, row}; // return as [column, row]
-        } catch (NumberFormatException e) {
+        long key = CellKey.parse(cellRef);
+        if (key == CellKey.NONE) {
             throw new IllegalArgumentException("Invalid row in cell reference: " + cellRef);
         }
+        return new int[]{CellKey.x(key), CellKey.y(key)}; // return as [column, row]
     }
 
     public static String convertCoordinatesToCellName(int x, int y) {
-        char column = (char) ('A' + x); // col by x
-        return column + Integer.toString(y); // row by y
+        return new CellEntry(x, y).toString(); // column letters (A..Z, AA, ...) then the row
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,765 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class Ex2SheetTest {
+
+    @Test
+    public void testDependentsAreUpdated() {
+        Ex2Sheet sheet = new Ex2Sheet(5, 5);
+        sheet.set(0, 0, "1");
+        sheet.set(0, 1, "=A0+1");
+        sheet.set(0, 2, "=A1*2");
+        sheet.set(1, 0, "=A2+A0");
+        assertEquals("4.0", sheet.value(0, 2));
+        assertEquals("5.0", sheet.value(1, 0));
+
+        sheet.set(0, 0, "5");
+        assertEquals("12.0", sheet.value(0, 2));
+        assertEquals("17.0", sheet.value(1, 0));
+    }
+
+    @Test
+    public void testCycleIsMarkedAndCleared() {
+        Ex2Sheet sheet = new Ex2Sheet(5, 5);
+        sheet.set(0, 0, "1");
+        sheet.set(1, 0, "=A0");
+        sheet.set(0, 0, "=B0");
+        assertEquals(Ex2Utils.ERR_CYCLE, sheet.value(0, 0));
+        assertEquals(Ex2Utils.ERR_CYCLE, sheet.value(1, 0));
+        sheet.set(2, 0, "=B0+1"); // depends on the cycle
+        assertEquals(Ex2Utils.ERR_CYCLE, sheet.value(2, 0));
+        assertEquals(-1, sheet.depth()[0][0]);
+        assertEquals(-1, sheet.depth()[2][0]);
+
+        sheet.set(0, 0, "2");
+        assertEquals("3.0", sheet.value(2, 0));
+        assertEquals(2, sheet.depth()[2][0]);
+        assertEquals("2.0", sheet.value(1, 0));
+        assertEquals(Ex2Utils.FORM, sheet.get(1, 0).getType());
+    }
+
+    @Test
+    public void testBatchCommitAndRollback() {
+        Ex2Sheet sheet = new Ex2Sheet(5, 5);
+        sheet.set(0, 0, "1");
+        sheet.beginBatch();
+        sheet.set(0, 0, "2");
+        sheet.set(0, 1, "=A0*10");
+        sheet.commit();
+        assertEquals("20.0", sheet.value(0, 1));
+
+        sheet.beginBatch();
+        sheet.set(0, 0, "3");
+        sheet.set(1, 1, "text");
+        sheet.rollback();
+        assertEquals("2.0", sheet.value(0, 0));
+        assertEquals("20.0", sheet.value(0, 1));
+        assertEquals(Ex2Utils.EMPTY_CELL, sheet.value(1, 1));
+
+        int last = Integer.MAX_VALUE - 1; // the largest column
+        assertThrows(IllegalArgumentException.class,
+                () -> sheet.setRange(last, 0, new String[][]{{"7"}, {"8"}})); // the second cell is out of range
+        assertEquals(Ex2Utils.EMPTY_CELL, sheet.value(last, 0));
+        assertEquals(5, sheet.width(), "the growth of a rolled back batch is undone as well");
+    }
+
+    @Test
+    public void testFailedSetRangeInsideBatch() {
+        Ex2Sheet sheet = new Ex2Sheet(5, 5);
+        sheet.set(0, 0, "1");
+        sheet.set(1, 1, "old");
+        sheet.beginBatch();
+        sheet.set(0, 0, "2"); // the caller's change, kept
+        int last = Integer.MAX_VALUE - 1;
+        assertThrows(IllegalArgumentException.class,
+                () -> sheet.setRange(last - 1, 0, new String[][]{{"a"}, {"b"}, {"c"}})); // the third cell is out of range
+        java.util.Map<Index2D, String> cells = new java.util.LinkedHashMap<>();
+        cells.put(new CellEntry(1, 1), "new");
+        cells.put(new CellEntry(4, 4), "=B1");
+        cells.put(new CellEntry(last, 0), "7");
+        cells.put(new CellEntry(last + 1, 0), "8"); // out of range
+        assertThrows(IllegalArgumentException.class, () -> sheet.setAll(cells));
+        assertTrue(sheet.inBatch());
+        assertEquals(5, sheet.width());
+        sheet.set(0, 1, "=A0*10");
+        sheet.commit(); // still the caller's batch
+        assertFalse(sheet.inBatch());
+        assertEquals("2.0", sheet.value(0, 0));
+        assertEquals("20.0", sheet.value(0, 1));
+        assertEquals("old", sheet.value(1, 1));
+        assertEquals(Ex2Utils.EMPTY_CELL, sheet.value(4, 4));
+        assertEquals(5, sheet.width());
+        sheet.ensureSize(last + 1, 5);
+        assertEquals(Ex2Utils.EMPTY_CELL, sheet.value(last - 1, 0));
+        assertEquals(Ex2Utils.EMPTY_CELL, sheet.value(last, 0));
+    }
+
+    @Test
+    public void testFailedLoadInsideBatch() throws java.io.IOException {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("sheet");
+        Ex2Sheet sheet = new Ex2Sheet(5, 5);
+        sheet.set(0, 0, "1");
+        sheet.set(1, 1, "=A0+1");
+        sheet.beginBatch();
+        sheet.set(0, 0, "2"); // the caller's changes, kept
+        sheet.set(9, 9, "=B1*3");
+        assertThrows(java.io.IOException.class, () -> sheet.load(dir.resolve("missing.txt").toString()));
+        assertTrue(sheet.inBatch());
+        assertEquals(10, sheet.width());
+        sheet.set(2, 2, "x");
+        sheet.commit(); // still the caller's batch
+        assertFalse(sheet.inBatch());
+        assertEquals("2.0", sheet.value(0, 0));
+        assertEquals("3.0", sheet.value(1, 1));
+        assertEquals("9.0", sheet.value(9, 9));
+        assertEquals("x", sheet.value(2, 2));
+        sheet.set(0, 0, "5"); // the restored formulas are live
+        assertEquals("18.0", sheet.value(9, 9));
+    }
+
+    @Test
+    public void testEvalNumberAndValueKind() {
+        Ex2Sheet sheet = new Ex2Sheet(5, 5);
+        sheet.set(0, 0, "2.5");
+        sheet.set(0, 1, "=A0*2");
+        sheet.set(1, 0, "hello");
+        sheet.set(1, 1, "=(1+");
+        sheet.set(2, 0, "=C1");
+        sheet.set(2, 1, "=C0");
+        sheet.set(3, 0, "1");
+        sheet.set(3, 0, ""); // used, then cleared
+
+        assertEquals(2.5, sheet.evalNumber(0, 0));
+        assertEquals(5.0, sheet.evalNumber(0, 1));
+        assertEquals(Ex2Sheet.NUMBER_VALUE, sheet.valueKind(0, 0));
+        assertEquals(Ex2Sheet.NUMBER_VALUE, sheet.valueKind(0, 1));
+        assertEquals(Ex2Sheet.TEXT_VALUE, sheet.valueKind(1, 0));
+        assertEquals(Ex2Sheet.ERR_FORM_VALUE, sheet.valueKind(1, 1));
+        assertEquals(Ex2Sheet.ERR_CYCLE_VALUE, sheet.valueKind(2, 0));
+        assertEquals(Ex2Sheet.EMPTY_VALUE, sheet.valueKind(3, 0));
+        assertEquals(Ex2Sheet.EMPTY_VALUE, sheet.valueKind(4, 4), "a cell that was never used");
+        assertEquals(Ex2Sheet.EMPTY_VALUE, sheet.valueKind(10, 10), "out of the sheet");
+
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> sheet.evalNumber(4, 4));
+        assertTrue(e.getMessage().contains("empty cell"));
+        e = assertThrows(IllegalArgumentException.class, () -> sheet.evalNumber(3, 0));
+        assertTrue(e.getMessage().contains("empty cell"));
+        e = assertThrows(IllegalArgumentException.class, () -> sheet.evalNumber(1, 0));
+        assertTrue(e.getMessage().contains("non numeric"));
+        assertThrows(IllegalArgumentException.class, () -> sheet.evalNumber(1, 1));
+        assertThrows(IllegalArgumentException.class, () -> sheet.evalNumber(2, 0));
+        e = assertThrows(IllegalArgumentException.class, () -> sheet.evalNumber(10, 10));
+        assertTrue(e.getMessage().contains("out of the sheet"));
+
+        sheet.beginBatch(); // not recalculated yet: both compute the cell on demand
+        sheet.set(0, 0, "4");
+        assertEquals(8.0, sheet.evalNumber(0, 1));
+        sheet.set(0, 0, "x");
+        assertEquals(Ex2Sheet.ERR_FORM_VALUE, sheet.valueKind(0, 1));
+        sheet.commit();
+    }
+
+    @Test
+    public void testFormulaBeforeItsReference() {
+        Ex2Sheet sheet = new Ex2Sheet(5, 5);
+        sheet.set(1, 1, "=A0*2"); // A0 is still empty
+        assertEquals(Ex2Utils.ERR_FORM, sheet.value(1, 1));
+        assertEquals(Ex2Utils.ERR_FORM_FORMAT, sheet.get(1, 1).getType());
+
+        sheet.set(0, 0, "4");
+        assertEquals("8.0", sheet.value(1, 1));
+        assertEquals(Ex2Utils.FORM, sheet.get(1, 1).getType());
+    }
+
+    @Test
+    public void testLongChain() {
+        int n = 100000;
+        Ex2Sheet sheet = new Ex2Sheet(1, n);
+        sheet.beginBatch();
+        sheet.set(0, 0, "1");
+        for (int y = 1; y < n; y++) {
+            sheet.set(0, y, "=A" + (y - 1) + "+1");
+        }
+        assertEquals(n + ".0", sheet.eval(0, n - 1), "computed on demand, before the commit");
+        sheet.commit();
+        sheet.set(0, 0, "2");
+        assertEquals((n + 1) + ".0", sheet.value(0, n - 1));
+        assertEquals(n - 1, sheet.depth()[0][n - 1]);
+        assertEquals(n - 1, sheet.depth(0, n - 1));
+        assertEquals(n - 1, sheet.get(0, n - 1).getOrder());
+
+        sheet.set(0, n / 2, "7"); // cuts the chain
+        assertEquals(n / 2 - 1, sheet.depth(0, n - 1));
+    }
+
+    @Test
+    public void testParallelMatchesSequential() {
+        Ex2Sheet sequential = new Ex2Sheet(26, 200);
+        Ex2Sheet parallel = new Ex2Sheet(26, 200);
+        parallel.setParallel(java.util.concurrent.ForkJoinPool.commonPool());
+        for (Ex2Sheet sheet : new Ex2Sheet[]{sequential, parallel}) {
+            sheet.beginBatch();
+            for (int x = 0; x < 26; x++) {
+                sheet.set(x, 0, "" + (x + 1));
+                for (int y = 1; y < 200; y++) {
+                    String prev = Ex2Sheet.convertCoordinatesToCellName(x, y - 1);
+                    String left = Ex2Sheet.convertCoordinatesToCellName((x + 25) % 26, y - 1);
+                    sheet.set(x, y, "=" + prev + "*1.01+" + left + "/" + (y % 7));
+                }
+            }
+            sheet.set(3, 50, "text"); // errors propagate down column D
+            sheet.set(5, 60, "=F61"); // and a cycle in column F
+            sheet.set(5, 61, "=F60");
+            sheet.commit();
+        }
+        for (int x = 0; x < 26; x++) {
+            for (int y = 0; y < 200; y++) {
+                assertEquals(sequential.value(x, y), parallel.value(x, y));
+                assertEquals(sequential.depth(x, y), parallel.depth(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testSparseSheet() {
+        Ex2Sheet sheet = new Ex2Sheet(26, 50000000); // only the used tiles are allocated
+        sheet.set(25, 49999999, "3");
+        sheet.set(0, 0, "=Z49999999*2");
+        assertEquals("6.0", sheet.value(0, 0));
+        assertSame(sheet.get(1, 1), sheet.get(7, 1234567), "untouched cells share one empty cell");
+        assertEquals(Ex2Utils.EMPTY_CELL, sheet.value(7, 1234567));
+        assertThrows(UnsupportedOperationException.class, () -> sheet.get(1, 1).setData("1"));
+
+        sheet.set(25, 49999999, "");
+        assertSame(EmptyCell.INSTANCE, sheet.get(25, 49999999));
+        assertEquals(Ex2Utils.ERR_FORM, sheet.value(0, 0));
+    }
+
+    @Test
+    public void testCellViews() {
+        Ex2Sheet sheet = new Ex2Sheet(5, 5);
+        sheet.set(0, 0, "1");
+        sheet.set(0, 1, "=A0+1");
+        Cell cell = sheet.get(0, 0);
+        cell.setData("41"); // a view changes the sheet
+        assertEquals("42.0", sheet.value(0, 1));
+        assertEquals("41.0", sheet.get(0, 0).getData());
+        assertEquals(1, sheet.get(0, 1).getOrder());
+
+        sheet.set(1, 1, "=(1+");
+        assertEquals(Ex2Utils.ERR_FORM, sheet.get(1, 1).getData());
+        assertEquals("=(1+", sheet.get(1, 1).getLine());
+        assertEquals(Ex2Utils.ERR_FORM_FORMAT, sheet.get(1, 1).getType());
+    }
+
+    @Test
+    public void testMultiLetterColumns() {
+        assertEquals("Z0", Ex2Sheet.convertCoordinatesToCellName(25, 0));
+        assertEquals("AA7", Ex2Sheet.convertCoordinatesToCellName(26, 7));
+        assertEquals("ZZ1", Ex2Sheet.convertCoordinatesToCellName(701, 1));
+        assertEquals("AAA1", Ex2Sheet.convertCoordinatesToCellName(702, 1));
+        assertEquals("M12", new CellEntry(12, 12).toString());
+
+        Ex2Sheet sheet = new Ex2Sheet(1000, 10);
+        sheet.set(702, 3, "5");
+        sheet.set(27, 0, "=aaa3*2");
+        sheet.set(0, 0, "=AB0+AAA3");
+        assertEquals("15.0", sheet.value(0, 0));
+        assertEquals("5.0", sheet.get("AAA3").getData());
+        assertArrayEquals(new int[]{27, 0}, sheet.parseCoordinates("AB0"));
+    }
+
+    @Test
+    public void testSheetGrows() {
+        Ex2Sheet sheet = new Ex2Sheet(9, 17);
+        sheet.set(0, 0, "=C100000+1"); // out of the sheet for now
+        assertEquals(Ex2Utils.ERR_FORM, sheet.value(0, 0));
+        sheet.set(2, 100000, "41");
+        assertEquals(100001, sheet.height());
+        assertEquals(9, sheet.width());
+        assertEquals("42.0", sheet.value(0, 0));
+        assertTrue(sheet.isIn(2, 100000));
+
+        sheet.ensureSize(30, 10);
+        assertEquals(30, sheet.width());
+        assertEquals(100001, sheet.height());
+        assertThrows(IllegalArgumentException.class, () -> sheet.set(-1, 0, "1"));
+    }
+
+    @Test
+    public void testLoad() throws java.io.IOException {
+        java.io.File file = java.io.File.createTempFile("sheet", ".txt");
+        file.deleteOnExit();
+        java.nio.file.Files.write(file.toPath(), ("header, ignored\n"
+                + "0,0,2\n"
+                + "0,1,=A0*3\r\n"
+                + "1,0,hello, world\n"
+                + "bad line\n"
+                + "-1,2,5\n"
+                + "1,1,\n"
+                + "3,40,=A1+1").getBytes());
+        Ex2Sheet sheet = new Ex2Sheet(2, 2);
+        sheet.set(1, 1, "old");
+        sheet.load(file.getPath());
+        assertEquals("6.0", sheet.value(0, 1));
+        assertEquals("hello, world", sheet.value(1, 0));
+        assertEquals(Ex2Utils.EMPTY_CELL, sheet.value(1, 1), "the old cells are cleared");
+        assertEquals("7.0", sheet.value(3, 40), "the sheet grows to fit the file");
+
+        sheet.save(file.getPath());
+        Ex2Sheet copy = new Ex2Sheet(1, 1);
+        copy.load(file.getPath());
+        for (int x = 0; x < 4; x++) {
+            for (int y = 0; y < 41; y++) {
+                assertEquals(sheet.value(x, y), copy.value(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testLoadInChunksAndSaveOver() throws java.io.IOException {
+        java.io.File file = java.io.File.createTempFile("sheet", ".txt");
+        file.deleteOnExit();
+        StringBuilder text = new StringBuilder("header\n");
+        int rows = 30000; // several chunks
+        for (int y = 0; y < rows; y++) {
+            text.append("0,").append(y).append(',').append(y).append('\n');
+            text.append("1,").append(y).append(",=A").append(y).append("*2\n");
+        }
+        java.nio.file.Files.write(file.toPath(), text.toString().getBytes());
+        Ex2Sheet sheet = new Ex2Sheet(1, 1);
+        sheet.load(file.getPath());
+        sheet.set(0, rows - 1, "1");
+        sheet.save(file.getPath()); // the loaded file is not held open or mapped
+
+        Ex2Sheet copy = new Ex2Sheet(1, 1);
+        copy.load(file.getPath());
+        assertEquals(rows, copy.height());
+        for (int y = 0; y < rows - 1; y++) {
+            assertEquals(y * 2.0, copy.evalNumber(1, y));
+        }
+        assertEquals("2.0", copy.value(1, rows - 1));
+    }
+
+    @Test
+    public void testSnapshot() throws java.io.IOException {
+        java.io.File file = java.io.File.createTempFile("sheet", ".ex2s");
+        file.deleteOnExit();
+        Ex2Sheet sheet = new Ex2Sheet(10, 10);
+        sheet.set(0, 0, "2");
+        sheet.set(0, 1, "=A0*3");
+        sheet.set(1, 0, "hello");
+        sheet.set(1, 1, "=B2+1"); // a cycle
+        sheet.set(1, 2, "=B1");
+        sheet.set(2, 0, "=(1+");
+        sheet.set(20, 2000, "=A1/2"); // another tile
+        sheet.saveSnapshot(file.getPath());
+
+        Ex2Sheet copy = new Ex2Sheet(1, 1);
+        copy.set(5, 5, "old");
+        copy.loadSnapshot(file.getPath());
+        assertEquals(sheet.width(), copy.width());
+        assertEquals(sheet.height(), copy.height());
+        assertEquals(Ex2Utils.EMPTY_CELL, copy.value(5, 5), "the old cells are replaced");
+        for (int[] c : new int[][]{{0, 0}, {0, 1}, {1, 0}, {1, 1}, {1, 2}, {2, 0}, {20, 2000}}) {
+            assertEquals(sheet.value(c[0], c[1]), copy.value(c[0], c[1]));
+            assertEquals(sheet.depth(c[0], c[1]), copy.depth(c[0], c[1]));
+            assertEquals(sheet.get(c[0], c[1]).getType(), copy.get(c[0], c[1]).getType());
+        }
+        copy.set(0, 0, "4"); // the restored dependencies are live
+        assertEquals("12.0", copy.value(0, 1));
+        assertEquals("6.0", copy.value(20, 2000));
+        copy.set(1, 2, "1"); // breaks the cycle
+        assertEquals("2.0", copy.value(1, 1));
+
+        String[][] region = SheetSnapshot.readValues(file.getPath(), 0, 0, 1, 1);
+        assertEquals("6.0", region[0][1]);
+        assertEquals("hello", region[1][0]);
+        assertEquals(Ex2Utils.ERR_CYCLE, region[1][1]);
+        assertEquals("3.0", SheetSnapshot.readValues(file.getPath(), 20, 2000, 20, 2000)[0][0]);
+
+        sheet.save(file.getPath()); // the text format is not a snapshot
+        assertThrows(java.io.IOException.class, () -> copy.loadSnapshot(file.getPath()));
+        assertEquals("12.0", copy.value(0, 1), "a failed load keeps the sheet");
+    }
+
+    @Test
+    public void testCorruptSnapshot() throws java.io.IOException {
+        java.io.File file = java.io.File.createTempFile("sheet", ".ex2s");
+        file.deleteOnExit();
+        Ex2Sheet sheet = new Ex2Sheet(3, 3);
+        sheet.set(0, 0, "hello");
+        sheet.saveSnapshot(file.getPath());
+        byte[] bytes = java.nio.file.Files.readAllBytes(file.toPath());
+        // the only block starts after the 20 bytes header: count, x, y, then the type and the error of the cell
+        int type = 20 + 12, error = type + 1;
+        int kind = error + 1 + 4 + "hello".length() + 4 + 1; // after the content, the references and hasFormula
+        for (int offset : new int[] {type, error, kind}) {
+            for (byte b : new byte[] {-3, 5, 100}) {
+                byte[] corrupt = bytes.clone();
+                corrupt[offset] = b;
+                java.nio.file.Files.write(file.toPath(), corrupt);
+                Ex2Sheet copy = new Ex2Sheet(1, 1);
+                copy.set(0, 0, "old");
+                assertThrows(java.io.IOException.class, () -> copy.loadSnapshot(file.getPath()), offset + ": " + b);
+                assertEquals("old", copy.value(0, 0), "a failed load keeps the sheet");
+            }
+        }
+        java.nio.file.Files.write(file.toPath(), bytes);
+        Ex2Sheet copy = new Ex2Sheet(1, 1);
+        copy.loadSnapshot(file.getPath());
+        assertEquals("hello", copy.value(0, 0));
+    }
+
+    @Test
+    public void testCorruptSnapshotSize() throws java.io.IOException {
+        java.io.File file = java.io.File.createTempFile("sheet", ".ex2s");
+        file.deleteOnExit();
+        Ex2Sheet sheet = new Ex2Sheet(3, 3);
+        sheet.set(2, 2, "hello");
+        sheet.saveSnapshot(file.getPath());
+        byte[] bytes = java.nio.file.Files.readAllBytes(file.toPath());
+        // the width and the height follow the magic, the version and the flags of the header
+        for (int offset : new int[] {12, 16}) {
+            for (int size : new int[] {-1, 0, 2, SheetSnapshot.MAX_SIZE + 1, Integer.MAX_VALUE}) {
+                byte[] corrupt = bytes.clone();
+                java.nio.ByteBuffer.wrap(corrupt).putInt(offset, size);
+                java.nio.file.Files.write(file.toPath(), corrupt);
+                Ex2Sheet copy = new Ex2Sheet(1, 1);
+                copy.set(0, 0, "old");
+                assertThrows(java.io.IOException.class, () -> copy.loadSnapshot(file.getPath()), offset + ": " + size);
+                assertEquals("old", copy.value(0, 0), "a failed load keeps the sheet");
+                assertEquals(1, copy.width());
+            }
+        }
+        byte[] larger = bytes.clone();
+        java.nio.ByteBuffer.wrap(larger).putInt(12, 100).putInt(16, SheetSnapshot.MAX_SIZE);
+        java.nio.file.Files.write(file.toPath(), larger);
+        Ex2Sheet copy = new Ex2Sheet(1, 1);
+        copy.loadSnapshot(file.getPath());
+        assertEquals(100, copy.width());
+        assertEquals(SheetSnapshot.MAX_SIZE, copy.height());
+        assertEquals("hello", copy.value(2, 2));
+    }
+
+    @Test
+    public void testReferencesAllocateNothing() throws java.io.IOException {
+        Ex2Sheet sheet = new Ex2Sheet(3, 3);
+        sheet.set(0, 0, "=ZZ99999");
+        sheet.set(1, 0, "=B2+C2+B2");
+        assertEquals(2, sheet.slotCount(), "only the written cells get slots");
+        assertEquals(Ex2Utils.ERR_FORM, sheet.value(0, 0));
+        sheet.set(1, 2, "2");
+        assertEquals(Ex2Utils.ERR_FORM, sheet.value(1, 0), "C2 is still empty");
+        sheet.set(2, 2, "3");
+        assertEquals("7.0", sheet.value(1, 0));
+        int[] far = sheet.parseCoordinates("ZZ99999");
+        sheet.set(far[0], far[1], "5");
+        assertEquals("5.0", sheet.value(0, 0));
+
+        // a snapshot keeps the references to the cells without slots
+        java.io.File file = java.io.File.createTempFile("sheet", ".ex2s");
+        file.deleteOnExit();
+        Ex2Sheet small = new Ex2Sheet(3, 3);
+        small.set(0, 0, "=B1*2");
+        small.saveSnapshot(file.getPath());
+        Ex2Sheet copy = new Ex2Sheet(1, 1);
+        copy.loadSnapshot(file.getPath());
+        assertEquals(1, copy.slotCount());
+        copy.set(1, 1, "4");
+        assertEquals("8.0", copy.value(0, 0));
+
+        // a load reclaims the slots of the cells it replaced
+        java.io.File text = java.io.File.createTempFile("sheet", ".txt");
+        text.deleteOnExit();
+        small.save(text.getPath());
+        sheet.load(text.getPath());
+        assertEquals(1, sheet.slotCount());
+        assertEquals(Ex2Utils.ERR_FORM, sheet.value(0, 0));
+        sheet.set(1, 1, "1.5");
+        assertEquals("3.0", sheet.value(0, 0));
+        assertEquals(Ex2Utils.EMPTY_CELL, sheet.value(2, 2));
+    }
+
+    @Test
+    public void testOrderedSave() throws java.io.IOException {
+        java.io.File file = java.io.File.createTempFile("sheet", ".txt");
+        file.deleteOnExit();
+        Ex2Sheet sheet = new Ex2Sheet(5, 5);
+        sheet.set(0, 0, "=A1*3");
+        sheet.set(0, 1, "=A2+1");
+        sheet.set(0, 2, "2");
+        sheet.set(1, 0, "=B1"); // a cycle
+        sheet.set(1, 1, "=B0");
+        sheet.set(2, 0, "=C4"); // an empty reference
+        sheet.set(2, 1, "a, b");
+        sheet.save(file.getPath(), true);
+        java.util.List<String> lines = java.nio.file.Files.readAllLines(file.toPath());
+        assertTrue(lines.indexOf("0,2,2.0") < lines.indexOf("0,1,=A2+1"), "a cell comes after its references");
+        assertTrue(lines.indexOf("0,1,=A2+1") < lines.indexOf("0,0,=A1*3"));
+        assertTrue(lines.get(lines.size() - 1).startsWith("#hash,"));
+
+        Ex2Sheet copy = new Ex2Sheet(1, 1);
+        copy.load(file.getPath());
+        for (int x = 0; x < 3; x++) {
+            for (int y = 0; y < 3; y++) {
+                assertEquals(sheet.value(x, y), copy.value(x, y));
+                assertEquals(sheet.depth(x, y), copy.depth(x, y));
+                assertEquals(sheet.get(x, y).getType(), copy.get(x, y).getType());
+            }
+        }
+        copy.set(0, 2, "3"); // the loaded dependencies are live
+        assertEquals("12.0", copy.value(0, 0));
+
+        lines.set(lines.indexOf("0,2,2.0"), "0,2,5"); // an edited file: the stored values are not used
+        java.nio.file.Files.write(file.toPath(), lines);
+        copy.load(file.getPath());
+        assertEquals("18.0", copy.value(0, 0));
+        assertEquals(Ex2Utils.ERR_CYCLE, copy.value(1, 0));
+    }
+
+    @Test
+    public void testJournal() throws java.io.IOException {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("journal");
+        String name = dir.resolve("sheet").toString();
+        Ex2Sheet sheet = new Ex2Sheet(5, 5);
+        SheetJournal journal = SheetJournal.open(sheet, name);
+        sheet.set(0, 0, "2");
+        sheet.set(0, 1, "=A0*3");
+        sheet.setRange(1, 0, new String[][]{{"x", "y"}});
+        sheet.beginBatch();
+        sheet.set(0, 0, "100");
+        sheet.rollback(); // not journaled
+        sheet.set(1, 1, "");
+        journal.sync(); // a crash from here on loses nothing
+
+        Ex2Sheet recovered = new Ex2Sheet(1, 1);
+        SheetJournal second = SheetJournal.open(recovered, name);
+        assertEquals("6.0", recovered.value(0, 1));
+        assertEquals("x", recovered.value(1, 0));
+        assertEquals(Ex2Utils.EMPTY_CELL, recovered.value(1, 1));
+        second.close();
+
+        journal.checkpoint(); // the sheet is written, the journal before it is deleted
+        sheet.set(2, 2, "=A1+1");
+        journal.close();
+        assertTrue(java.nio.file.Files.exists(dir.resolve("sheet.checkpoint")));
+        assertFalse(java.nio.file.Files.exists(dir.resolve("sheet.journal.1")));
+
+        java.nio.file.Path last = dir.resolve("sheet.journal.2");
+        java.nio.file.Files.write(last, new byte[]{0, 0, 0, 9, 1}, java.nio.file.StandardOpenOption.APPEND); // torn
+        Ex2Sheet third = new Ex2Sheet(1, 1);
+        SheetJournal.open(third, name).close();
+        assertEquals("7.0", third.value(2, 2));
+        assertEquals("2.0", third.value(0, 0));
+    }
+
+    @Test
+    public void testJournalCheckpointKeepsInvalidFormula() throws java.io.IOException {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("journal");
+        String name = dir.resolve("sheet").toString();
+        Ex2Sheet sheet = new Ex2Sheet(5, 5);
+        SheetJournal journal = SheetJournal.open(sheet, name);
+        sheet.set(0, 0, "=(1+");
+        journal.checkpoint();
+        journal.close();
+
+        Ex2Sheet recovered = new Ex2Sheet(1, 1);
+        SheetJournal.open(recovered, name).close();
+        assertEquals("=(1+", recovered.get(0, 0).getLine());
+        assertEquals(Ex2Utils.ERR_FORM_FORMAT, recovered.get(0, 0).getType());
+        assertEquals(sheet.value(0, 0), recovered.value(0, 0));
+    }
+
+    @Test
+    public void testJournalSkipsCoveredFiles() throws java.io.IOException {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("journal");
+        String name = dir.resolve("sheet").toString();
+        java.io.File file = java.io.File.createTempFile("sheet", ".txt");
+        file.deleteOnExit();
+        java.nio.file.Files.write(file.toPath(), "header\n0,0,5\n1,1,=A0*2\n".getBytes());
+        Ex2Sheet sheet = new Ex2Sheet(5, 5);
+        SheetJournal journal = SheetJournal.open(sheet, name);
+        sheet.set(0, 0, "1");
+        sheet.set(2, 2, "old");
+        journal.sync();
+        java.nio.file.Path first = dir.resolve("sheet.journal.1");
+        byte[] covered = java.nio.file.Files.readAllBytes(first);
+        long records = journal.records();
+        sheet.load(file.getPath()); // written as a checkpoint that covers journal 1
+        assertEquals(records, journal.records(), "the cells emptied by the load are not journaled");
+        sheet.set(3, 3, "=B1+1");
+        journal.close();
+        assertFalse(java.nio.file.Files.exists(first));
+
+        java.nio.file.Files.write(first, covered); // as if a crash came before the covered journal was deleted
+        Ex2Sheet recovered = new Ex2Sheet(1, 1);
+        SheetJournal.open(recovered, name).close();
+        assertEquals("5.0", recovered.value(0, 0));
+        assertEquals(Ex2Utils.EMPTY_CELL, recovered.value(2, 2));
+        assertEquals("11.0", recovered.value(3, 3));
+        assertFalse(java.nio.file.Files.exists(first), "the covered journal is deleted once recovered");
+    }
+
+    @Test
+    public void testValueCache() {
+        Ex2Sheet sheet = new Ex2Sheet(5, 5);
+        sheet.set(0, 0, "1");
+        sheet.set(0, 1, "=A0+1");
+        sheet.set(1, 0, "=3*4");
+        sheet.set(1, 1, "text");
+        sheet.resetCacheStats();
+        String first = sheet.value(0, 1);
+        assertSame(first, sheet.value(0, 1), "the string is built once");
+        sheet.value(1, 0);
+        sheet.value(1, 0);
+        assertEquals(2, sheet.cacheMisses());
+        assertEquals(2, sheet.cacheHits());
+
+        sheet.set(0, 0, "5"); // only A0 and its dependent A1 are recomputed
+        assertEquals("6.0", sheet.value(0, 1));
+        assertEquals("12.0", sheet.value(1, 0));
+        assertEquals(3, sheet.cacheMisses());
+        assertEquals(3, sheet.cacheHits());
+
+        sheet.get(1, 1).setError(Ex2Utils.ERR_FORM); // changes the data of a text value
+        assertEquals(Ex2Utils.ERR_FORM, sheet.value(1, 1));
+        assertEquals(Ex2Utils.EMPTY_CELL, sheet.value(4, 4));
+        assertEquals(Ex2Utils.EMPTY_CELL, sheet.value(9, 9));
+    }
+
+    @Test
+    public void testBoundedValueCache() {
+        Ex2Sheet sheet = new Ex2Sheet(2, 1000);
+        sheet.setValueCacheBudget(100 * 45); // about 100 of the strings below
+        for (int y = 0; y < 1000; y++) {
+            sheet.set(0, y, "" + y);
+            sheet.set(1, y, "=A" + y + "*2");
+        }
+        sheet.resetCacheStats();
+        for (int y = 0; y < 1000; y++) assertEquals((2.0 * y) + "", sheet.value(1, y));
+        assertTrue(sheet.cacheEvictions() >= 890, "only about 100 strings are kept");
+        for (int k = 0; k < 10; k++) sheet.value(1, 999); // a hot cell survives the next pass
+        for (int y = 0; y < 1000; y++) assertEquals((2.0 * y) + "", sheet.value(1, y));
+        assertTrue(sheet.cacheRecomputes() > 800);
+        assertEquals(sheet.cacheMisses(), 1000 + sheet.cacheRecomputes());
+
+        sheet.setValueCacheBudget(0); // unbounded again
+        sheet.resetCacheStats();
+        sheet.value(0, 5);
+        sheet.value(0, 5);
+        assertEquals(1, sheet.cacheHits());
+        assertEquals(0, sheet.cacheEvictions());
+
+        // the cache keeps only its entries: no room is made for the slots it does not hold
+        ClockCache cache = new ClockCache(100 * 40);
+        java.util.BitSet dropped = new java.util.BitSet();
+        for (int slot = 0; slot < 100000; slot++) cache.put(slot * 1000, 40, dropped::set);
+        assertEquals(100000 - 100, cache.evictions());
+        assertEquals(100 * 40, cache.bytes());
+        cache.touch(99999 * 1000);
+        cache.put(Integer.MAX_VALUE, 40, dropped::set);
+        assertFalse(dropped.get(99999 * 1000), "a used entry gets a second chance");
+        assertEquals(100000 - 99, dropped.cardinality());
+    }
+
+    @Test
+    public void testTemplateSharing() throws java.io.IOException {
+        Ex2Sheet sheet = new Ex2Sheet(3, 1000);
+        for (int y = 0; y < 1000; y++) {
+            sheet.set(0, y, "" + y);
+            sheet.set(1, y, "=A" + y + "*1.17");
+            sheet.set(2, y, y == 0 ? "=B0" : "=C" + (y - 1) + "+B" + y); // a running total
+        }
+        assertEquals(3, sheet.templateCount(), "one shape per filled-down column (and the first total)");
+        assertEquals(999 * 1.17 + "", sheet.value(1, 999));
+        assertEquals(sheet.value(2, 998), sheet.eval(2, 998));
+        sheet.set(1, 5, "=A5 * 1.17"); // the same tokens
+        sheet.set(1, 6, "=A5*1.17"); // another shape: not relative to its own row
+        assertEquals(4, sheet.templateCount());
+        assertEquals(5 * 1.17 + "", sheet.value(1, 6));
+
+        java.io.File file = java.io.File.createTempFile("templates", ".csv");
+        try {
+            sheet.save(file.getPath());
+            Ex2Sheet loaded = new Ex2Sheet(1, 1);
+            loaded.load(file.getPath());
+            assertEquals(4, loaded.templateCount()); // each shape is parsed once
+            for (int y = 0; y < 1000; y += 111) assertEquals(sheet.value(2, y), loaded.value(2, y));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testParallelSharedSubexpressions() {
+        Ex2Sheet sequential = new Ex2Sheet(3, 2000);
+        Ex2Sheet parallel = new Ex2Sheet(3, 2000);
+        parallel.setParallel(java.util.concurrent.ForkJoinPool.commonPool());
+        for (Ex2Sheet sheet : new Ex2Sheet[]{sequential, parallel}) {
+            sheet.beginBatch();
+            sheet.set(0, 0, "1");
+            sheet.set(1, 0, "2");
+            for (int y = 1; y < 2000; y++) sheet.set(2, y, "=(A0+B0)*" + y); // one subexpression, in every cell
+            sheet.commit();
+            assertEquals(1, sheet.sharedSubexpressionCount());
+        }
+        long reuses = parallel.subexpressionReuses();
+        parallel.set(0, 0, "5"); // the workers compute it in every cell, they do not share its value
+        sequential.set(0, 0, "5");
+        assertEquals(reuses, parallel.subexpressionReuses());
+        assertTrue(sequential.subexpressionReuses() > 0);
+        for (int y = 1; y < 2000; y++) {
+            assertEquals(sequential.value(2, y), parallel.value(2, y));
+            assertEquals(7.0 * y, parallel.evalNumber(2, y));
+        }
+    }
+
+    @Test
+    public void testSharedSubexpressions() {
+        Ex2Sheet sheet = new Ex2Sheet(6, 6);
+        sheet.set(0, 0, "1");
+        sheet.set(1, 0, "2");
+        sheet.set(2, 0, "=(A0+B0)*2");
+        sheet.set(3, 0, "=(A0+B0)/4");
+        sheet.set(4, 0, "=a0 + b0 + 1"); // the same subexpression: (A0+B0)+1
+        assertEquals(1, sheet.sharedSubexpressionCount());
+
+        long reuses = sheet.subexpressionReuses();
+        sheet.set(0, 0, "5"); // A0+B0 is computed once, then reused by the two other cells
+        assertEquals(reuses + 2, sheet.subexpressionReuses());
+        assertEquals("14.0", sheet.value(2, 0));
+        assertEquals("1.75", sheet.value(3, 0));
+        assertEquals("8.0", sheet.value(4, 0));
+
+        sheet.set(5, 1, "=(A1+B1)*(A1+B1)"); // twice in one cell
+        sheet.set(0, 1, "3");
+        sheet.set(1, 1, "4");
+        assertEquals("49.0", sheet.value(5, 1));
+        assertEquals(2, sheet.sharedSubexpressionCount());
+
+        sheet.set(2, 0, "=A0*3");
+        sheet.set(3, 0, "");
+        sheet.set(5, 1, "=(A1+B1)*2");
+        assertEquals(0, sheet.sharedSubexpressionCount());
+        assertEquals("8.0", sheet.value(4, 0));
+        for (int y = 2; y < 6; y++) sheet.set(2, y, "=(A" + y + "+B" + y + ")*2"); // a column shares nothing
+        assertEquals(0, sheet.sharedSubexpressionCount());
+    }
+
+    @Test
+    public void testLongFormulaSubexpressions() {
+        StringBuilder form = new StringBuilder("=A1");
+        for (int i = 1; i < 3000; i++) form.append("+A1");
+        Ex2Sheet sheet = new Ex2Sheet(3, 3);
+        sheet.set(0, 1, "2");
+        sheet.set(1, 1, form.toString());
+        sheet.set(2, 2, form.toString()); // the same subexpressions, in another template
+        assertEquals("6000.0", sheet.value(1, 1));
+        assertEquals(Formula.MAX_SUBEXPRESSIONS, sheet.sharedSubexpressionCount(), "only a few are kept per formula");
+        long reuses = sheet.subexpressionReuses();
+        sheet.set(0, 1, "3");
+        assertEquals("9000.0", sheet.value(2, 2));
+        assertEquals(reuses + 1, sheet.subexpressionReuses()); // the outermost kept one, in the second cell
+    }
+}
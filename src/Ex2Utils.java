@@ -14,7 +14,7 @@ public class Ex2Utils {
     public static final boolean Debug = false;
     public static final String[] M_OPS = {"+", "-", "*", "/"};
     public static final String EMPTY_CELL = "";
-    public static  final String[] ABC= {"A","B","C","D","E","F","G","H","I","J","K","L","O","M","N","P","Q","R","S","T","U","V","W","X","Y","Z"};
+    public static  final String[] ABC= {"A","B","C","D","E","F","G","H","I","J","K","L","M","N","O","P","Q","R","S","T","U","V","W","X","Y","Z"};
 
     // ****** not implemented in Ex2!! ******
     // public static final String[] FUNCTIONS = {"if", "sin", "cos", "pow", "min", "max"};
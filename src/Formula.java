@@ -0,0 +1,892 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A formula (e.g., "=A1*(3-A2)") compiled once into an immutable expression tree,
+ * which is then lowered into a compact postfix (RPN) program: opcodes in an int[] and constants in a double[].
+ * The cell references of the formula are resolved to x,y coordinates when it is compiled,
+ * so evaluating it only runs the program over a reusable double stack and reads the values of the referenced cells.
+ * The program keeps its references relative to the cell of the formula (its anchor, as in R1C1 notation),
+ * so the formulas of a filled-down column (=A0*1.17, =A1*1.17, ...) have the same shape and share one Template:
+ * each cell only keeps its text and its anchor (see Templates).
+ * Constant subexpressions are folded when the formula is parsed (=2+3*2 is the constant 8), and the subexpressions
+ * with several references (e.g., (A0+B0)) are hash-consed across the sheet (see Subexpressions):
+ * a subexpression used by several cells is computed once per recalculation, the other cells reuse its value.
+ */
+public final class Formula {
+    // opcodes, the operand (a constant or a reference index) is kept in the upper bits of the instruction
+    static final int CONST = 0, REF = 1, NEG = 2, ADD = 3, SUB = 4, MUL = 5, DIV = 6;
+    static final int OP_BITS = 8, OP_MASK = (1 << OP_BITS) - 1;
+    static final int MAX_SUBEXPRESSIONS = 16; // the subexpressions of a formula that may be shared with other cells
+    // the odd multipliers of the hashes of the subexpressions (see Template.findSubexpressions)
+    private static final long ROLL = 0x9E3779B97F4A7C15L, TOKEN = 0xC2B2AE3D27D4EB4FL, CONST_BITS = 0x165667B19E3779F9L,
+            REF_X = 0xD6E8FEB86659FD93L, REF_Y = 0xFF51AFD7ED558CCDL;
+
+    // one evaluation stack per thread, shared by all the formulas (nested evaluations use the part above their caller)
+    private static final ThreadLocal<EvalStack> STACKS = ThreadLocal.withInitial(EvalStack::new);
+
+    private final String text; // the formula as it was written (with the '=')
+    private final Template template; // the program, possibly shared with other cells of the same shape
+    private final int x, y; // the anchor: the references of the program are relative to it
+    private Shared[] shared; // the entries of the subexpressions of the program, null while not in a Subexpressions
+
+    private Formula(String text, Template template, int x, int y) {
+        this.text = text;
+        this.template = template;
+        this.x = x;
+        this.y = y;
+    }
+
+    /**
+     * Compiles a formula.
+     * @param form the formula text, starting with '='.
+     * @return the compiled formula.
+     * @throws IllegalArgumentException if the text is not a valid formula.
+     */
+    public static Formula compile(String form) {
+        CellLexer tokens = CellLexer.classify(form);
+        if (form == null || tokens.getType() != Ex2Utils.FORM) {
+            throw new IllegalArgumentException("Invalid formula: " + form);
+        }
+        return compile(form, tokens);
+    }
+
+    /**
+     * Compiles a formula from the tokens of its (already classified) text.
+     * @param form the formula text.
+     * @param tokens the classification of form, must be a FORM.
+     * @return the compiled formula.
+     */
+    public static Formula compile(String form, CellLexer tokens) {
+        return new Formula(form, new Template(new Parser(tokens).parseExpression(), 0, 0), 0, 0);
+    }
+
+    /**
+     * Compiles the formula of the x,y cell, sharing the program of an earlier formula of the same shape:
+     * the text is only parsed the first time its shape is seen.
+     * @param form the formula text.
+     * @param tokens the classification of form, must be a FORM.
+     * @param templates the programs compiled so far, by shape.
+     * @return the compiled formula.
+     */
+    public static Formula compile(String form, CellLexer tokens, int x, int y, Templates templates) {
+        Shape shape = new Shape(tokens, x, y);
+        Template t = templates.map.get(shape);
+        if (t == null) {
+            t = new Template(new Parser(tokens).parseExpression(), x, y);
+            Template old = templates.map.putIfAbsent(shape, t);
+            if (old != null) t = old; // compiled by another thread meanwhile (see SheetLoader)
+        }
+        return new Formula(form, t, x, y);
+    }
+
+    // the values a formula reads: the number in a cell, or an IllegalArgumentException (empty, text, out of the sheet)
+    public interface Values {
+        double evalNumber(int x, int y);
+    }
+
+    // compute the value of this formula using the values of the cells in the given sheet
+    public double evaluate(Ex2Sheet sheet) {
+        Shared[] sh = shared;
+        if (sh != null && sheet != null) {
+            int stamp = sheet.recalculationStamp();
+            if (stamp != 0 && isShared(sh)) return interpretShared(sheet, sh, stamp);
+        }
+        Template t = template;
+        CompiledFormula c = t.compiled;
+        if (c != null) return c.evaluate(sheet, x, y);
+        int threshold = FormulaJit.getThreshold();
+        // the evaluations of all the cells of a shape count, so a filled-down column is compiled (once) early;
+        // the count is not exact with several threads, but it only grows, and one of them compiles
+        if (threshold > 0 && sheet != null && ++t.evalCount >= threshold && t.compiling.compareAndSet(false, true)) {
+            try {
+                t.compiled = FormulaJit.compile(t.code, t.constants, t.dx, t.dy, t.maxStack);
+            } catch (IllegalStateException e) {
+                // stay in the interpreter
+            }
+        }
+        return interpret(sheet);
+    }
+
+    // compute the value of this formula using other values (always interpreted, the bytecode reads an Ex2Sheet)
+    public double evaluate(Values values) {
+        return interpret(values);
+    }
+
+    // true once this formula runs as bytecode
+    public boolean isCompiled() {
+        return template.compiled != null;
+    }
+
+    // true if both formulas run the same (shared) program
+    boolean sharesTemplate(Formula other) {
+        return template == other.template;
+    }
+
+    // true if one of the subexpressions is used more than once in the sheet
+    private static boolean isShared(Shared[] sh) {
+        for (Shared e : sh) {
+            if (e.count > 1) return true;
+        }
+        return false;
+    }
+
+    // run the postfix program
+    private double interpret(Values sheet) {
+        Template t = template;
+        int[] code = t.code, dx = t.dx, dy = t.dy;
+        double[] constants = t.constants;
+        EvalStack stack = STACKS.get();
+        int base = stack.reserve(t.maxStack);
+        try {
+            double[] s = stack.data;
+            int sp = base;
+            for (int ins : code) {
+                switch (ins & OP_MASK) {
+                    case CONST:
+                        s[sp++] = constants[ins >>> OP_BITS];
+                        break;
+                    case REF: {
+                        int r = ins >>> OP_BITS;
+                        if (sheet == null) throw new IllegalArgumentException("Formula contains a cell reference: " + text);
+                        double v = sheet.evalNumber(x + dx[r], y + dy[r]);
+                        s = stack.data; // a nested evaluation may have grown the stack
+                        s[sp++] = v;
+                        break;
+                    }
+                    case NEG:
+                        s[sp - 1] = -s[sp - 1];
+                        break;
+                    case ADD:
+                        sp--;
+                        s[sp - 1] = s[sp - 1] + s[sp];
+                        break;
+                    case SUB:
+                        sp--;
+                        s[sp - 1] = s[sp - 1] - s[sp];
+                        break;
+                    case MUL:
+                        sp--;
+                        s[sp - 1] = s[sp - 1] * s[sp];
+                        break;
+                    case DIV:
+                        sp--;
+                        s[sp - 1] = Utils.divide(s[sp - 1], s[sp]);
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown opcode: " + (ins & OP_MASK));
+                }
+            }
+            return s[base];
+        } finally {
+            stack.top = base;
+        }
+    }
+
+    /**
+     * Runs the postfix program, reusing the values of the shared subexpressions computed earlier in this recalculation:
+     * the code of such a subexpression is skipped, and its value is pushed instead.
+     * The subexpressions it does compute are kept for the next cells (in a recalculation the referenced cells
+     * are computed before all the cells that reference them, so a kept value stays valid until the next one).
+     * @param stamp the current recalculation (see Ex2Sheet.recalculationStamp).
+     */
+    private double interpretShared(Ex2Sheet sheet, Shared[] sh, int stamp) {
+        Template t = template;
+        int[] code = t.code, dx = t.dx, dy = t.dy, starts = t.subStarts, ends = t.subEnds;
+        double[] constants = t.constants;
+        EvalStack stack = STACKS.get();
+        int base = stack.reserve(t.maxStack);
+        int markBase = stack.reserveMarks(sh.length);
+        try {
+            double[] s = stack.data;
+            int sp = base, marks = markBase; // marks: the subexpressions being computed, innermost last
+            int pc = 0, k = 0;
+            while (pc < code.length) {
+                if (k < starts.length && starts[k] == pc) { // a subexpression starts here (the outermost first)
+                    Shared e = sh[k];
+                    if (e.count > 1 && e.stamp == stamp) {
+                        s[sp++] = e.value;
+                        e.owner.reuses++;
+                        pc = ends[k];
+                        while (k < starts.length && starts[k] < pc) k++; // the ones inside it
+                    } else {
+                        if (e.count > 1) stack.marks[marks++] = k;
+                        k++;
+                    }
+                    continue;
+                }
+                int ins = code[pc++];
+                switch (ins & OP_MASK) {
+                    case CONST:
+                        s[sp++] = constants[ins >>> OP_BITS];
+                        break;
+                    case REF: {
+                        int r = ins >>> OP_BITS;
+                        double v = sheet.evalNumber(x + dx[r], y + dy[r]);
+                        s = stack.data; // a nested evaluation may have grown the stack
+                        s[sp++] = v;
+                        break;
+                    }
+                    case NEG:
+                        s[sp - 1] = -s[sp - 1];
+                        break;
+                    case ADD:
+                        sp--;
+                        s[sp - 1] = s[sp - 1] + s[sp];
+                        break;
+                    case SUB:
+                        sp--;
+                        s[sp - 1] = s[sp - 1] - s[sp];
+                        break;
+                    case MUL:
+                        sp--;
+                        s[sp - 1] = s[sp - 1] * s[sp];
+                        break;
+                    case DIV:
+                        sp--;
+                        s[sp - 1] = Utils.divide(s[sp - 1], s[sp]);
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown opcode: " + (ins & OP_MASK));
+                }
+                while (marks > markBase && ends[stack.marks[marks - 1]] == pc) { // a subexpression was computed
+                    Shared e = sh[stack.marks[--marks]];
+                    e.value = s[sp - 1];
+                    e.stamp = stamp; // after the value, so a thread that sees the stamp sees the value
+                }
+            }
+            return s[base];
+        } finally {
+            stack.top = base;
+            stack.markTop = markBase;
+        }
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    // number of cell references in this formula
+    public int getReferenceCount() {
+        return template.dx.length;
+    }
+
+    public int getRefX(int i) {
+        return x + template.dx[i];
+    }
+
+    public int getRefY(int i) {
+        return y + template.dy[i];
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    // the number of bytes write needs
+    int byteSize() {
+        Template t = template;
+        return 4 + t.code.length * 4 + 4 + t.constants.length * 8 + 4 + t.dx.length * 8 + 4;
+    }
+
+    // write the compiled program (not the text), so it can be read back without parsing (see read)
+    void write(ByteBuffer out) {
+        Template t = template;
+        out.putInt(t.code.length);
+        for (int ins : t.code) out.putInt(ins);
+        out.putInt(t.constants.length);
+        for (double c : t.constants) out.putDouble(c);
+        out.putInt(t.dx.length);
+        for (int i = 0; i < t.dx.length; i++) { // absolute, as in the text
+            out.putInt(getRefX(i));
+            out.putInt(getRefY(i));
+        }
+        out.putInt(t.maxStack);
+    }
+
+    /**
+     * Reads a program written by write.
+     * @param text the text the program was compiled from.
+     * @throws IOException if the input ends too soon or the program is not valid.
+     */
+    static Formula read(String text, ByteBuffer in) throws IOException {
+        try {
+            int[] code = new int[checkedLength(in.getInt(), 4, in)];
+            for (int i = 0; i < code.length; i++) code[i] = in.getInt();
+            double[] constants = new double[checkedLength(in.getInt(), 8, in)];
+            for (int i = 0; i < constants.length; i++) constants[i] = in.getDouble();
+            int n = checkedLength(in.getInt(), 8, in);
+            int[] refX = new int[n], refY = new int[n];
+            for (int i = 0; i < n; i++) {
+                refX[i] = in.getInt();
+                refY[i] = in.getInt();
+            }
+            int maxStack = in.getInt();
+            int depth = 0, max = 0; // the interpreter trusts its program, so check its operands and stack use
+            for (int ins : code) {
+                int op = ins & OP_MASK, operand = ins >>> OP_BITS;
+                if (op == CONST || op == REF) {
+                    if (operand >= (op == CONST ? constants.length : n)) throw new IOException("Invalid formula program: " + text);
+                    max = Math.max(max, ++depth);
+                } else if (op == NEG) {
+                    if (depth < 1) throw new IOException("Invalid formula program: " + text);
+                } else if (op <= DIV && depth >= 2) {
+                    depth--;
+                } else {
+                    throw new IOException("Invalid formula program: " + text);
+                }
+            }
+            if (depth != 1 || maxStack != max) throw new IOException("Invalid formula program: " + text);
+            return new Formula(text, new Template(code, constants, refX, refY, maxStack), 0, 0);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated formula program: " + text, e);
+        }
+    }
+
+    // a length of items of the given size, which should fit in what is left of the input
+    private static int checkedLength(int n, int itemSize, ByteBuffer in) throws IOException {
+        if (n < 0 || n > in.remaining() / itemSize) throw new IOException("Invalid formula program length: " + n);
+        return n;
+    }
+
+    // ****** shared programs ******
+
+    /**
+     * The compiled program of a formula shape, shared by all the formulas of that shape.
+     * Its references are offsets from the anchor of the formula that runs it, and it counts the evaluations
+     * of all these formulas, so the shape is compiled into bytecode once (see FormulaJit).
+     */
+    static final class Template {
+        final int[] code; // the postfix program
+        final double[] constants;
+        final int[] dx, dy; // the referenced cells, relative to the anchor
+        final int maxStack; // the stack depth needed by the program
+        int evalCount; // evaluations in the interpreter, the template is compiled once it is hot
+        final AtomicBoolean compiling = new AtomicBoolean(); // set by the one evaluation that compiles it
+        volatile CompiledFormula compiled; // the bytecode version of the program (null while interpreted)
+        // the subexpressions that may be shared with other cells (those with 2 references or more, but the whole,
+        // at most MAX_SUBEXPRESSIONS: the smallest, the most likely to repeat),
+        // found once the template is used in a sheet (see Subexpressions.add):
+        // the code of subexpression k is [subStarts[k], subEnds[k]), outermost first,
+        // its references are taken relative to its first one, which is at subDx[k],subDy[k] from the anchor,
+        // so the same subexpression has the same subHashes[k] wherever it is
+        int[] subStarts, subEnds, subDx, subDy;
+        long[] subHashes;
+
+        // the tree is only needed to build the program, it is not kept
+        Template(Node root, int x, int y) {
+            Lowering lowering = new Lowering();
+            lowering.emit(root);
+            this.code = Arrays.copyOf(lowering.code, lowering.codeSize);
+            this.constants = Arrays.copyOf(lowering.constants, lowering.constSize);
+            this.dx = Arrays.copyOf(lowering.refX, lowering.refSize);
+            this.dy = Arrays.copyOf(lowering.refY, lowering.refSize);
+            for (int i = 0; i < dx.length; i++) {
+                dx[i] -= x;
+                dy[i] -= y;
+            }
+            this.maxStack = lowering.maxDepth;
+        }
+
+        Template(int[] code, double[] constants, int[] dx, int[] dy, int maxStack) {
+            this.code = code;
+            this.constants = constants;
+            this.dx = dx;
+            this.dy = dy;
+            this.maxStack = maxStack;
+        }
+
+        /**
+         * Finds the subexpressions in the postfix program, in one pass: a stack of the (start, references,
+         * first reference) of the operands, an operator combines the ones it pops into the subexpression that ends
+         * with it. A subexpression is hashed in place, from rolling hashes of the prefixes of the program:
+         * a reference adds dx*REF_X + dy*REF_Y to its token, so moving all the references of a span by the same
+         * offset moves its hash by that offset times the weights of its references (known from another rolling sum),
+         * which is taken out.
+         */
+        private void findSubexpressions() {
+            if (subHashes != null) return;
+            int n = code.length;
+            long[] prefix = new long[n + 1], refWeights = new long[n + 1], powers = new long[n + 1];
+            powers[0] = 1;
+            for (int pc = 0; pc < n; pc++) {
+                int op = code[pc] & OP_MASK, operand = code[pc] >>> OP_BITS;
+                long token = (op + 1) * TOKEN;
+                if (op == CONST) token += Double.doubleToLongBits(constants[operand]) * CONST_BITS;
+                if (op == REF) token += dx[operand] * REF_X + dy[operand] * REF_Y;
+                prefix[pc + 1] = prefix[pc] * ROLL + token;
+                refWeights[pc + 1] = refWeights[pc] * ROLL + (op == REF ? 1 : 0);
+                powers[pc + 1] = powers[pc] * ROLL;
+            }
+
+            int[] start = new int[n], refs = new int[n], first = new int[n];
+            IntList found = new IntList(); // start, end, first reference
+            int sp = 0;
+            for (int pc = 0; pc < n; pc++) {
+                int op = code[pc] & OP_MASK;
+                if (op == CONST || op == REF) {
+                    start[sp] = pc;
+                    refs[sp] = op == REF ? 1 : 0;
+                    first[sp++] = code[pc] >>> OP_BITS;
+                } else if (op != NEG) {
+                    sp--;
+                    if (refs[sp - 1] == 0) first[sp - 1] = first[sp];
+                    refs[sp - 1] += refs[sp];
+                }
+                if (op != CONST && op != REF && refs[sp - 1] > 1 && pc < n - 1) {
+                    found.add(start[sp - 1]);
+                    found.add(pc + 1);
+                    found.add(first[sp - 1]);
+                }
+            }
+
+            // keep the smallest ones (by length, then position), then order them by start, the outermost first
+            int count = found.size() / 3;
+            long[] bySize = new long[count];
+            for (int k = 0; k < count; k++) {
+                bySize[k] = ((long) (found.get(k * 3 + 1) - found.get(k * 3)) << 32) | k;
+            }
+            Arrays.sort(bySize);
+            count = Math.min(count, MAX_SUBEXPRESSIONS);
+            long[] byStart = new long[count];
+            for (int k = 0; k < count; k++) {
+                int i = (int) bySize[k];
+                // the start, then the end descending: of two that start together the longer one is the outer one
+                byStart[k] = ((long) found.get(i * 3) << 32) | (Integer.MAX_VALUE - found.get(i * 3 + 1));
+            }
+            Arrays.sort(byStart);
+            subStarts = new int[count];
+            subEnds = new int[count];
+            subDx = new int[count];
+            subDy = new int[count];
+            long[] hashes = new long[count];
+            for (int k = 0; k < count; k++) {
+                int from = (int) (byStart[k] >>> 32), to = Integer.MAX_VALUE - (int) byStart[k];
+                int r = -1;
+                for (int pc = from; r == -1; pc++) { // the first reference of the span
+                    if ((code[pc] & OP_MASK) == REF) r = code[pc] >>> OP_BITS;
+                }
+                long len = powers[to - from];
+                long hash = prefix[to] - prefix[from] * len;
+                long weights = refWeights[to] - refWeights[from] * len;
+                subStarts[k] = from;
+                subEnds[k] = to;
+                subDx[k] = dx[r];
+                subDy[k] = dy[r];
+                hashes[k] = hash - (dx[r] * REF_X + dy[r] * REF_Y) * weights;
+            }
+            subHashes = hashes; // last: it tells the subexpressions were found
+        }
+
+        // true if subexpression k of this template is the same program as subexpression j of the other one
+        boolean sameSubexpression(int k, Template other, int j) {
+            int from = subStarts[k], to = subEnds[k], otherFrom = other.subStarts[j];
+            if (to - from != other.subEnds[j] - otherFrom) return false;
+            for (int pc = from, q = otherFrom; pc < to; pc++, q++) {
+                int ins = code[pc], otherIns = other.code[q], op = ins & OP_MASK;
+                if (op != (otherIns & OP_MASK)) return false;
+                int a = ins >>> OP_BITS, b = otherIns >>> OP_BITS;
+                if (op == CONST && Double.doubleToLongBits(constants[a])
+                        != Double.doubleToLongBits(other.constants[b])) return false;
+                if (op == REF && (dx[a] - subDx[k] != other.dx[b] - other.subDx[j]
+                        || dy[a] - subDy[k] != other.dy[b] - other.subDy[j])) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The subexpressions of the formulas of a sheet, hash-consed: the same subexpression (the same program on
+     * the same cells) in several cells, or twice in one cell, is one entry, counted once per use.
+     * An entry used more than once keeps its value for the current recalculation (see interpretShared).
+     * Not thread safe: the formulas are added and removed by the thread that changes the cells, and the values are
+     * kept and reused only by a sequential recalculation (a parallel one evaluates every formula in full).
+     */
+    public static final class Subexpressions {
+        private final HashMap<Shared, Shared> map = new HashMap<>();
+        long reuses; // values reused instead of computed (by the thread of the sheet only)
+
+        // the formula is now in a cell, hash-cons its subexpressions (a formula is added once)
+        public void add(Formula f) {
+            Template t = f.template;
+            t.findSubexpressions();
+            if (t.subHashes.length == 0) return;
+            Shared[] sh = new Shared[t.subHashes.length];
+            for (int k = 0; k < sh.length; k++) {
+                Shared key = new Shared(this, t, k, f.x + t.subDx[k], f.y + t.subDy[k]);
+                Shared e = map.putIfAbsent(key, key);
+                sh[k] = e != null ? e : key;
+                sh[k].count++;
+            }
+            f.shared = sh;
+        }
+
+        // the formula is no longer in its cell
+        public void remove(Formula f) {
+            Shared[] sh = f.shared;
+            if (sh == null) return;
+            for (Shared e : sh) {
+                if (--e.count == 0) map.remove(e);
+            }
+            f.shared = null;
+        }
+
+        // the number of distinct subexpressions used more than once
+        public int sharedCount() {
+            int ans = 0;
+            for (Shared e : map.keySet()) {
+                if (e.count > 1) ans++;
+            }
+            return ans;
+        }
+
+        public long reuses() {
+            return reuses;
+        }
+
+        public void clear() {
+            for (Shared e : map.keySet()) e.count = 0; // the formulas still holding them no longer share them
+            map.clear();
+        }
+    }
+
+    // a hash-consed subexpression: subexpression k of a template at an anchor (its first reference), with its last value
+    private static final class Shared {
+        final Subexpressions owner;
+        final Template template; // the template of the first formula it was found in
+        final int k;
+        final int x, y;
+        int count; // the uses of this subexpression in the cells
+        double value;
+        volatile int stamp; // the recalculation the value was computed in, 0 for none
+
+        Shared(Subexpressions owner, Template template, int k, int x, int y) {
+            this.owner = owner;
+            this.template = template;
+            this.k = k;
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Shared)) return false;
+            Shared e = (Shared) o;
+            if (e.x != x || e.y != y || e.template.subHashes[e.k] != template.subHashes[k]) return false;
+            return (e.template == template && e.k == k) || template.sameSubexpression(k, e.template, e.k);
+        }
+
+        @Override
+        public int hashCode() {
+            long h = template.subHashes[k] * 0x9E3779B97F4A7C15L;
+            return ((int) (h ^ (h >>> 32)) * 31 + x) * 31 + y;
+        }
+    }
+
+    /**
+     * The templates compiled so far, by shape (e.g., the ones of a sheet).
+     * Safe to use from several threads, a shape compiled twice at the same time keeps one of its templates.
+     */
+    public static final class Templates {
+        private final ConcurrentHashMap<Shape, Template> map = new ConcurrentHashMap<>();
+
+        // the number of distinct shapes
+        public int size() {
+            return map.size();
+        }
+
+        public void clear() {
+            map.clear();
+        }
+    }
+
+    // the shape of a formula: its tokens with the references relative to its cell, so =A0*1.17 in A1 is =A1*1.17 in A2
+    private static final class Shape {
+        private final long[] tokens; // kind, then the bits of a number or the packed offsets of a reference
+        private final int hash;
+
+        Shape(CellLexer lexer, int x, int y) {
+            int n = lexer.size(), size = n;
+            for (int i = 0; i < n; i++) {
+                byte kind = lexer.kind(i);
+                if (kind == CellLexer.NUM || kind == CellLexer.REF) size++;
+            }
+            tokens = new long[size];
+            int k = 0;
+            for (int i = 0; i < n; i++) {
+                byte kind = lexer.kind(i);
+                tokens[k++] = kind;
+                if (kind == CellLexer.NUM) {
+                    tokens[k++] = Double.doubleToLongBits(lexer.number(i));
+                } else if (kind == CellLexer.REF) {
+                    tokens[k++] = ((long) (lexer.refX(i) - x) << 32) | ((lexer.refY(i) - y) & 0xffffffffL);
+                }
+            }
+            hash = Arrays.hashCode(tokens);
+        }
+
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Shape && ((Shape) o).hash == hash && Arrays.equals(((Shape) o).tokens, tokens);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    // ****** expression tree ******
+
+    abstract static class Node {
+    }
+
+    // a constant number
+    static final class Num extends Node {
+        final double value;
+
+        Num(double value) {
+            this.value = value;
+        }
+    }
+
+    // a reference to another cell, already resolved to its coordinates
+    static final class Ref extends Node {
+        final int x, y;
+
+        Ref(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    // unary minus
+    static final class Neg extends Node {
+        final Node operand;
+
+        Neg(Node operand) {
+            this.operand = operand;
+        }
+    }
+
+    // one of the binary operators + - * /
+    static final class BinOp extends Node {
+        final char op;
+        final Node left, right;
+
+        BinOp(char op, Node left, Node right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    // ****** lowering the tree into the postfix program ******
+
+    private static final class Lowering {
+        int[] code = new int[16];
+        double[] constants = new double[4];
+        int[] refX = new int[4], refY = new int[4];
+        int codeSize, constSize, refSize, depth, maxDepth;
+
+        // emit the program of the tree in postorder, with an explicit stack (a long formula is a deep tree):
+        // a node is pushed, its children then above it, and it is emitted once it is popped the second time
+        void emit(Node root) {
+            Node[] nodes = new Node[16];
+            boolean[] expanded = new boolean[16];
+            int sp = 0;
+            nodes[sp++] = root;
+            while (sp > 0) {
+                Node n = nodes[--sp];
+                if (sp + 3 > nodes.length) {
+                    nodes = Arrays.copyOf(nodes, nodes.length * 2);
+                    expanded = Arrays.copyOf(expanded, nodes.length);
+                }
+                if (n instanceof Num) {
+                    if (constSize == constants.length) constants = Arrays.copyOf(constants, constSize * 2);
+                    constants[constSize] = ((Num) n).value;
+                    add(CONST, constSize++, 1);
+                } else if (n instanceof Ref) {
+                    if (refSize == refX.length) {
+                        refX = Arrays.copyOf(refX, refSize * 2);
+                        refY = Arrays.copyOf(refY, refSize * 2);
+                    }
+                    refX[refSize] = ((Ref) n).x;
+                    refY[refSize] = ((Ref) n).y;
+                    add(REF, refSize++, 1);
+                } else if (expanded[sp]) { // its operands were emitted
+                    if (n instanceof Neg) {
+                        add(NEG, 0, 0);
+                    } else {
+                        add(opcode(((BinOp) n).op), 0, -1);
+                    }
+                } else {
+                    expanded[sp] = true; // again, after its operands
+                    nodes[sp++] = n;
+                    if (n instanceof Neg) {
+                        expanded[sp] = false;
+                        nodes[sp++] = ((Neg) n).operand;
+                    } else {
+                        expanded[sp] = false;
+                        nodes[sp++] = ((BinOp) n).right;
+                        expanded[sp] = false;
+                        nodes[sp++] = ((BinOp) n).left;
+                    }
+                }
+            }
+        }
+
+        private void add(int op, int operand, int stackChange) {
+            if (codeSize == code.length) code = Arrays.copyOf(code, codeSize * 2);
+            code[codeSize++] = op | (operand << OP_BITS);
+            depth += stackChange;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+    }
+
+    static int opcode(char op) {
+        switch (op) {
+            case '+':
+                return ADD;
+            case '-':
+                return SUB;
+            case '*':
+                return MUL;
+            case '/':
+                return DIV;
+            default:
+                throw new IllegalArgumentException("Unknown operator: " + op);
+        }
+    }
+
+    // a growable stack of doubles, reused by all the evaluations of one thread
+    private static final class EvalStack {
+        double[] data = new double[64];
+        int top;
+        int[] marks = new int[16]; // the subexpressions being computed (see interpretShared)
+        int markTop;
+
+        // reserve n marks above the current ones, returns the base of the reserved marks
+        int reserveMarks(int n) {
+            int base = markTop;
+            if (base + n > marks.length) marks = Arrays.copyOf(marks, Math.max(marks.length * 2, base + n));
+            markTop = base + n;
+            return base;
+        }
+
+        // reserve n slots above the current top, returns the base of the reserved slots
+        int reserve(int n) {
+            int base = top;
+            if (base + n > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, base + n));
+            top = base + n;
+            return base;
+        }
+    }
+
+    // ****** parser (operator precedence over the tokens of CellLexer, which already checked the syntax) ******
+
+    /**
+     * Builds the tree with two explicit stacks (shunting-yard), so neither a long formula nor deep parentheses
+     * need a deep Java stack: the operands (subtrees) and the pending operators.
+     * * and / bind tighter than + and -, both are left associative, and a unary minus applies to the factor after it.
+     */
+    private static final class Parser {
+        private final CellLexer tokens;
+        private Node[] operands = new Node[16];
+        private int operandCount;
+        private byte[] operators = new byte[16];
+        private int operatorCount;
+
+        Parser(CellLexer tokens) {
+            this.tokens = tokens;
+        }
+
+        Node parseExpression() {
+            for (int i = 0; i < tokens.size(); i++) {
+                byte kind = tokens.kind(i);
+                switch (kind) {
+                    case CellLexer.NUM:
+                        pushOperand(new Num(tokens.number(i)));
+                        break;
+                    case CellLexer.REF:
+                        pushOperand(new Ref(tokens.refX(i), tokens.refY(i)));
+                        break;
+                    case CellLexer.NEG:
+                    case CellLexer.OPEN:
+                        pushOperator(kind);
+                        break;
+                    case CellLexer.CLOSE:
+                        while (operators[operatorCount - 1] != CellLexer.OPEN) reduce();
+                        operatorCount--; // the opening parenthesis
+                        factorDone();
+                        break;
+                    default: // a binary operator: first reduce the ones before it that bind at least as tightly
+                        while (operatorCount > 0 && precedence(operators[operatorCount - 1]) >= precedence(kind)) {
+                            reduce();
+                        }
+                        pushOperator(kind);
+                }
+            }
+            while (operatorCount > 0) reduce();
+            return operands[0];
+        }
+
+        // 2 for * and /, 1 for + and -, 0 for a parenthesis (and a unary minus, which is reduced with its factor)
+        private static int precedence(byte kind) {
+            if (kind == CellLexer.MUL || kind == CellLexer.DIV) return 2;
+            return kind == CellLexer.PLUS || kind == CellLexer.MINUS ? 1 : 0;
+        }
+
+        private void pushOperand(Node n) {
+            if (operandCount == operands.length) operands = Arrays.copyOf(operands, operandCount * 2);
+            operands[operandCount++] = n;
+            factorDone();
+        }
+
+        private void pushOperator(byte kind) {
+            if (operatorCount == operators.length) operators = Arrays.copyOf(operators, operatorCount * 2);
+            operators[operatorCount++] = kind;
+        }
+
+        // a factor is complete: apply the unary minuses before it
+        private void factorDone() {
+            while (operatorCount > 0 && operators[operatorCount - 1] == CellLexer.NEG) reduce();
+        }
+
+        // apply the operator on top of the stack to its operands
+        private void reduce() {
+            byte kind = operators[--operatorCount];
+            if (kind == CellLexer.NEG) {
+                Node operand = operands[operandCount - 1];
+                operands[operandCount - 1] = operand instanceof Num ? new Num(-((Num) operand).value) : new Neg(operand);
+                return;
+            }
+            Node right = operands[--operandCount], left = operands[operandCount - 1];
+            char op = kind == CellLexer.PLUS ? '+' : kind == CellLexer.MINUS ? '-' : kind == CellLexer.MUL ? '*' : '/';
+            operands[operandCount - 1] = binary(op, left, right);
+        }
+
+        // a binary operator, folded into a constant if both operands are (computed as the program would)
+        private static Node binary(char op, Node left, Node right) {
+            if (!(left instanceof Num) || !(right instanceof Num)) return new BinOp(op, left, right);
+            double a = ((Num) left).value, b = ((Num) right).value;
+            switch (op) {
+                case '+':
+                    return new Num(a + b);
+                case '-':
+                    return new Num(a - b);
+                case '*':
+                    return new Num(a * b);
+                default:
+                    return new Num(Utils.divide(a, b));
+            }
+        }
+    }
+}
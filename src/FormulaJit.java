@@ -0,0 +1,255 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Second tier of formula evaluation: turns the postfix program of a hot formula into JVM bytecode.
+ * Each formula becomes a hidden class implementing CompiledFormula, so HotSpot can compile and inline its arithmetic.
+ * The generated code is a direct translation of the program (the JVM is a stack machine as well):
+ * constants are ldc2_w, references call Ex2Sheet.evalNumber (at the anchor plus their offset),
+ * and division goes through Utils.divide so the division by zero rule is the same as in the interpreter.
+ * A hidden class is unloaded once its formulas are no longer used (e.g., when the cells' text changes).
+ */
+public class FormulaJit {
+    private static int threshold = 1000; // evaluations before a formula is compiled, 0 turns the JIT off
+
+    private FormulaJit() {
+    }
+
+    // number of evaluations (in the interpreter) before a formula is compiled
+    public static int getThreshold() {
+        return threshold;
+    }
+
+    // change the number of evaluations before a formula is compiled, 0 (or less) turns the JIT off
+    public static void setThreshold(int t) {
+        threshold = t;
+    }
+
+    /**
+     * Compiles a postfix program (as built by Formula) into a hidden class.
+     * @param dx the columns of the referenced cells, relative to the anchor.
+     * @param dy the rows of the referenced cells, relative to the anchor.
+     * @return the compiled formula.
+     * @throws IllegalStateException if the class could not be generated or defined.
+     */
+    static CompiledFormula compile(int[] code, double[] constants, int[] dx, int[] dy, int maxStack) {
+        try {
+            byte[] bytes = new ClassWriter().write(code, constants, dx, dy, maxStack);
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            return (CompiledFormula) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (Throwable e) {
+            throw new IllegalStateException("Could not compile formula", e);
+        }
+    }
+
+    // ****** a minimal class file writer, enough for straight line code (no branches, so no stack maps) ******
+
+    private static final int ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, ILOAD_2 = 0x1c, ILOAD_3 = 0x1d, IADD = 0x60,
+            ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13, LDC2_W = 0x14, DNEG = 0x77, DADD = 0x63, DSUB = 0x67, DMUL = 0x6b,
+            DRETURN = 0xaf, RETURN = 0xb1, INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8;
+
+    private static final class ClassWriter {
+        private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+        private final DataOutputStream pool = new DataOutputStream(poolBytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int poolCount = 1;
+
+        byte[] write(int[] program, double[] constants, int[] dx, int[] dy, int maxStack) throws IOException {
+            int thisClass = classRef(FormulaJit.class.getName() + "$Compiled");
+            int superClass = classRef("java/lang/Object");
+            int iface = classRef(CompiledFormula.class.getName());
+            int initName = utf8("<init>"), initType = utf8("()V");
+            int init = nameAndType("<init>", "()V");
+            int objectInit = methodRef(superClass, init);
+            int evalNumber = methodRef(classRef(Ex2Sheet.class.getName()), nameAndType("evalNumber", "(II)D"));
+            int divide = methodRef(classRef(Utils.class.getName()), nameAndType("divide", "(DD)D"));
+            int evaluate = utf8("evaluate");
+            int evaluateType = utf8("(L" + Ex2Sheet.class.getName() + ";II)D");
+            int codeAttr = utf8("Code");
+
+            // the constructor: super()
+            ByteArrayOutputStream ctor = new ByteArrayOutputStream();
+            ctor.write(ALOAD_0);
+            ctor.write(INVOKESPECIAL);
+            u2(ctor, objectInit);
+            ctor.write(RETURN);
+
+            // evaluate(sheet, x, y): the program, one JVM instruction (or call) per opcode
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            for (int ins : program) {
+                int operand = ins >>> Formula.OP_BITS;
+                switch (ins & Formula.OP_MASK) {
+                    case Formula.CONST:
+                        body.write(LDC2_W);
+                        u2(body, doubleConst(constants[operand]));
+                        break;
+                    case Formula.REF:
+                        body.write(ALOAD_1);
+                        offset(body, ILOAD_2, dx[operand]);
+                        offset(body, ILOAD_3, dy[operand]);
+                        body.write(INVOKEVIRTUAL);
+                        u2(body, evalNumber);
+                        break;
+                    case Formula.NEG:
+                        body.write(DNEG);
+                        break;
+                    case Formula.ADD:
+                        body.write(DADD);
+                        break;
+                    case Formula.SUB:
+                        body.write(DSUB);
+                        break;
+                    case Formula.MUL:
+                        body.write(DMUL);
+                        break;
+                    case Formula.DIV:
+                        body.write(INVOKESTATIC);
+                        u2(body, divide);
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown opcode: " + (ins & Formula.OP_MASK));
+                }
+            }
+            body.write(DRETURN);
+            if (body.size() > 0xffff || poolCount > 0xffff) throw new IllegalStateException("Formula is too long to compile");
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DataOutputStream cls = new DataOutputStream(out);
+            cls.writeInt(0xCAFEBABE);
+            cls.writeShort(0); // minor version
+            cls.writeShort(52); // major version (Java 8): no stack map tables needed for straight line code
+            cls.writeShort(poolCount);
+            pool.flush();
+            poolBytes.writeTo(cls);
+            cls.writeShort(0x0001 | 0x0010 | 0x0020); // public final super
+            cls.writeShort(thisClass);
+            cls.writeShort(superClass);
+            cls.writeShort(1); // interfaces
+            cls.writeShort(iface);
+            cls.writeShort(0); // fields
+            cls.writeShort(2); // methods
+            method(cls, 0x0001, initName, initType, codeAttr, 1, 1, ctor.toByteArray());
+            // each reference needs the sheet and two ints (the anchor and an offset, then the second coordinate)
+            // on top of the doubles of the program
+            method(cls, 0x0001, evaluate, evaluateType, codeAttr, 2 * Math.max(maxStack, 1) + 4, 4, body.toByteArray());
+            cls.writeShort(0); // class attributes
+            cls.flush();
+            return out.toByteArray();
+        }
+
+        private void method(DataOutputStream cls, int access, int name, int type, int codeAttr,
+                            int maxStack, int maxLocals, byte[] code) throws IOException {
+            cls.writeShort(access);
+            cls.writeShort(name);
+            cls.writeShort(type);
+            cls.writeShort(1); // attributes: Code
+            cls.writeShort(codeAttr);
+            cls.writeInt(12 + code.length);
+            cls.writeShort(maxStack);
+            cls.writeShort(maxLocals);
+            cls.writeInt(code.length);
+            cls.write(code);
+            cls.writeShort(0); // exception table
+            cls.writeShort(0); // code attributes
+        }
+
+        // push a coordinate of the anchor (a local) plus the offset of a reference
+        private void offset(ByteArrayOutputStream body, int load, int offset) throws IOException {
+            body.write(load);
+            if (offset != 0) {
+                pushInt(body, offset);
+                body.write(IADD);
+            }
+        }
+
+        private void pushInt(ByteArrayOutputStream body, int v) throws IOException {
+            if (v >= -1 && v <= 5) {
+                body.write(ICONST_0 + v);
+            } else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) {
+                body.write(BIPUSH);
+                body.write(v);
+            } else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) {
+                body.write(SIPUSH);
+                u2(body, v);
+            } else {
+                body.write(LDC_W);
+                u2(body, intConst(v));
+            }
+        }
+
+        private static void u2(ByteArrayOutputStream out, int v) {
+            out.write((v >>> 8) & 0xff);
+            out.write(v & 0xff);
+        }
+
+        // ****** constant pool ******
+
+        private int utf8(String s) throws IOException {
+            Integer i = entries.get("U" + s);
+            if (i != null) return i;
+            pool.writeByte(1);
+            pool.writeUTF(s);
+            return add("U" + s, 1);
+        }
+
+        private int intConst(int v) throws IOException {
+            Integer i = entries.get("I" + v);
+            if (i != null) return i;
+            pool.writeByte(3);
+            pool.writeInt(v);
+            return add("I" + v, 1);
+        }
+
+        private int doubleConst(double v) throws IOException {
+            String key = "D" + Double.doubleToRawLongBits(v);
+            Integer i = entries.get(key);
+            if (i != null) return i;
+            pool.writeByte(6);
+            pool.writeDouble(v);
+            return add(key, 2); // a double takes two entries
+        }
+
+        private int classRef(String name) throws IOException {
+            String internal = name.replace('.', '/');
+            Integer i = entries.get("C" + internal);
+            if (i != null) return i;
+            int n = utf8(internal);
+            pool.writeByte(7);
+            pool.writeShort(n);
+            return add("C" + internal, 1);
+        }
+
+        private int nameAndType(String name, String type) throws IOException {
+            String key = "N" + name + ":" + type;
+            Integer i = entries.get(key);
+            if (i != null) return i;
+            int n = utf8(name), t = utf8(type);
+            pool.writeByte(12);
+            pool.writeShort(n);
+            pool.writeShort(t);
+            return add(key, 1);
+        }
+
+        private int methodRef(int owner, int nameAndType) throws IOException {
+            String key = "M" + owner + ":" + nameAndType;
+            Integer i = entries.get(key);
+            if (i != null) return i;
+            pool.writeByte(10);
+            pool.writeShort(owner);
+            pool.writeShort(nameAndType);
+            return add(key, 1);
+        }
+
+        private int add(String key, int size) {
+            int index = poolCount;
+            poolCount += size;
+            entries.put(key, index);
+            return index;
+        }
+    }
+}
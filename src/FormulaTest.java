@@ -0,0 +1,183 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FormulaTest {
+
+    @Test
+    public void testEvaluate() {
+        assertEquals(8.0, Formula.compile("=2+3*2").evaluate(null));
+        assertEquals(10.0, Formula.compile("=(2+3)*2").evaluate(null));
+        assertEquals(8.0, Formula.compile("=5-(-3)").evaluate(null));
+        assertEquals(-5.0, Formula.compile("=2-3-4").evaluate(null));
+        assertEquals(Double.POSITIVE_INFINITY, Formula.compile("=-1/0").evaluate(null));
+        assertThrows(IllegalArgumentException.class, () -> Formula.compile("=2+"));
+        assertThrows(IllegalArgumentException.class, () -> Formula.compile("=(2"));
+    }
+
+    @Test
+    public void testCompiledOnce() {
+        String form = "=A0*2+B3/C1";
+        Formula f = Formula.compile(form, CellLexer.classify(form), 4, 4, new Formula.Templates());
+        assertEquals(form, f.getText());
+        assertEquals(3, f.getReferenceCount());
+        java.util.Set<String> refs = new java.util.HashSet<>();
+        for (int i = 0; i < f.getReferenceCount(); i++) refs.add(f.getRefX(i) + "," + f.getRefY(i));
+        assertEquals(java.util.Set.of("0,0", "1,3", "2,1"), refs, "the references are resolved to coordinates");
+
+        double[][] grid = new double[3][4];
+        java.util.List<String> reads = new java.util.ArrayList<>();
+        Formula.Values values = (x, y) -> {
+            reads.add(x + "," + y);
+            return grid[x][y];
+        };
+        grid[0][0] = 1;
+        grid[1][3] = 4;
+        grid[2][1] = 2;
+        assertEquals(4.0, f.evaluate(values));
+        assertEquals(java.util.List.of("0,0", "1,3", "2,1"), reads, "each reference is read once, as a number");
+        grid[0][0] = 5; // the same program, new values
+        grid[2][1] = 8;
+        assertEquals(10.5, f.evaluate(values));
+        assertThrows(IllegalArgumentException.class, () -> f.evaluate((Formula.Values) (x, y) -> {
+            throw new IllegalArgumentException("empty");
+        }));
+        assertEquals(10.5, f.evaluate(values));
+    }
+
+    @Test
+    public void testPostfixEvaluation() {
+        double[] row = {12, 3, 2, 5, 4};
+        Formula.Values values = (x, y) -> row[x];
+        assertEquals(7.0, Formula.compile("=A0-B0-C0").evaluate(values), "left associative");
+        assertEquals(2.0, Formula.compile("=A0/B0/C0").evaluate(values));
+        assertEquals(12 - 3 * 2 + 5.0 / 4, Formula.compile("=A0-B0*C0+D0/E0").evaluate(values));
+        assertEquals(12.0, Formula.compile("=-A0*(B0-C0*(D0-B0))").evaluate(values));
+        assertEquals(Double.POSITIVE_INFINITY, Formula.compile("=-A0/(B0-3)").evaluate(values), "as Utils.divide");
+
+        // a reference evaluated by another (deeper) program, which grows the stack both evaluations share
+        StringBuilder deep = new StringBuilder("=");
+        for (int i = 0; i < 100; i++) deep.append("1-(");
+        deep.append("A0");
+        for (int i = 0; i < 100; i++) deep.append(')');
+        Formula inner = Formula.compile(deep.toString());
+        Formula outer = Formula.compile("=A0+B0*(C0-B0)");
+        Formula.Values nested = (x, y) -> x == 1 ? inner.evaluate((Formula.Values) (ix, iy) -> 7) + 1 : row[x];
+        assertEquals(12 + 8 * (2 - 8), outer.evaluate(nested));
+        assertEquals(12 + 8 * (2 - 8), outer.evaluate(nested), "the grown stack is reused");
+        assertEquals(12.0, inner.evaluate(values));
+    }
+
+    @Test
+    public void testCompiledMatchesInterpreter() {
+        Ex2Sheet sheet = new Ex2Sheet(5, 5);
+        sheet.set(0, 0, "3");
+        sheet.set(1, 1, "-2");
+        int threshold = FormulaJit.getThreshold();
+        FormulaJit.setThreshold(2);
+        try {
+            String[] forms = {"=(A0+3)*B1", "=A0/0", "=-A0/(B1+2)", "=1000000/3+A0*70000-B1"};
+            for (String form : forms) {
+                Formula f = Formula.compile(form);
+                double interpreted = f.evaluate(sheet);
+                f.evaluate(sheet);
+                assertTrue(f.isCompiled());
+                assertEquals(interpreted, f.evaluate(sheet));
+            }
+        } finally {
+            FormulaJit.setThreshold(threshold);
+        }
+    }
+
+    @Test
+    public void testCompiledOnceHot() throws InterruptedException {
+        Ex2Sheet sheet = new Ex2Sheet(5, 5);
+        sheet.set(0, 0, "3");
+        int threshold = FormulaJit.getThreshold();
+        try {
+            FormulaJit.setThreshold(100);
+            Formula f = Formula.compile("=A0*7+1");
+            for (int i = 0; i < 3; i++) f.evaluate(sheet);
+            FormulaJit.setThreshold(2); // already beyond it (as when concurrent counts were lost)
+            f.evaluate(sheet);
+            assertTrue(f.isCompiled());
+
+            FormulaJit.setThreshold(50);
+            Formula g = Formula.compile("=A0*7+2");
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(() -> {
+                    for (int k = 0; k < 1000; k++) assertEquals(23.0, g.evaluate(sheet));
+                });
+                threads[i].start();
+            }
+            for (Thread t : threads) t.join();
+            assertTrue(g.isCompiled());
+            assertEquals(23.0, g.evaluate(sheet));
+        } finally {
+            FormulaJit.setThreshold(threshold);
+        }
+    }
+
+    @Test
+    public void testSharedTemplate() {
+        Ex2Sheet sheet = new Ex2Sheet(3, 41);
+        Formula.Templates templates = new Formula.Templates();
+        Formula[] column = new Formula[40];
+        for (int y = 0; y < 40; y++) {
+            sheet.set(0, y, "" + y);
+            sheet.set(1, y + 1, "" + (y + 1) * 10);
+            String form = "=A" + y + "*2-B" + (y + 1);
+            column[y] = Formula.compile(form, CellLexer.classify(form), 2, y, templates);
+        }
+        assertEquals(1, templates.size());
+        assertTrue(column[0].sharesTemplate(column[39]));
+        assertEquals(1, column[39].getRefX(1));
+        assertEquals(40, column[39].getRefY(1));
+        int threshold = FormulaJit.getThreshold();
+        FormulaJit.setThreshold(10);
+        try {
+            for (int y = 0; y < 40; y++) { // compiled once, after the first ten cells, then run at every anchor
+                assertEquals(y * 2 - (y + 1) * 10, column[y].evaluate(sheet));
+            }
+            assertTrue(column[39].isCompiled());
+        } finally {
+            FormulaJit.setThreshold(threshold);
+        }
+    }
+
+    @Test
+    public void testConstantFolding() {
+        assertEquals(Formula.compile("=-8").byteSize(), Formula.compile("=-(2+3*2)").byteSize());
+        assertEquals(Formula.compile("=A0*8").byteSize(), Formula.compile("=A0*(2+3*2)").byteSize());
+        assertEquals(Formula.compile("=A0*2").byteSize() + 16, Formula.compile("=A0*2*3").byteSize(),
+                "(A0*2)*3 is not reassociated");
+        assertEquals(Double.POSITIVE_INFINITY, Formula.compile("=1/(2-2)").evaluate(null));
+    }
+
+    @Test
+    public void testLongAndDeepFormulas() {
+        int n = 10000; // deeper than the Java stack would allow for a recursive parser
+        StringBuilder sum = new StringBuilder("=A1"), nested = new StringBuilder("="), right = new StringBuilder("=");
+        for (int i = 1; i < n; i++) sum.append("+A1");
+        for (int i = 0; i < n; i++) {
+            nested.append('(');
+            right.append("1-(");
+        }
+        nested.append("A1*2");
+        right.append("A1");
+        for (int i = 0; i < n; i++) {
+            nested.append(')');
+            right.append(')');
+        }
+        Ex2Sheet sheet = new Ex2Sheet(5, 5);
+        sheet.set(0, 1, "2");
+        sheet.set(1, 1, sum.toString());
+        sheet.set(2, 1, nested.toString());
+        sheet.set(3, 1, right.toString());
+        assertEquals(20000.0, sheet.evalNumber(1, 1));
+        assertEquals(4.0, sheet.evalNumber(2, 1));
+        assertEquals(2.0, sheet.evalNumber(3, 1)); // an even number of 1-(...)
+        assertEquals(7.0, Formula.compile("=-(-2)*3-(-1)").evaluate(null));
+        assertEquals(-2.0, Formula.compile("=1-2-3+2*3/2-1").evaluate(null));
+    }
+}
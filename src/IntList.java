@@ -0,0 +1,57 @@
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive ints (no boxing), used for cell indices.
+ */
+public class IntList {
+    private int[] data;
+    private int size;
+
+    public IntList() {
+        this(8);
+    }
+
+    public IntList(int capacity) {
+        data = new int[Math.max(capacity, 1)];
+    }
+
+    public void add(int v) {
+        if (size == data.length) data = Arrays.copyOf(data, size * 2);
+        data[size++] = v;
+    }
+
+    public int get(int i) {
+        return data[i];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int pop() {
+        return data[--size];
+    }
+
+    // remove the first occurrence of v (the last element takes its place), returns false if v is not in the list
+    public boolean removeValue(int v) {
+        for (int i = 0; i < size; i++) {
+            if (data[i] == v) {
+                data[i] = data[--size];
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(data, size);
+    }
+}
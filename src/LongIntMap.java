@@ -0,0 +1,94 @@
+import java.util.Arrays;
+
+/**
+ * A hash map from long keys to int values without boxing (open addressing, linear probing).
+ * Values must not be negative: -1 is returned for a missing key.
+ */
+public class LongIntMap {
+    private long[] keys;
+    private int[] values; // -1 marks an empty slot
+    private int size;
+
+    public LongIntMap() {
+        this(16);
+    }
+
+    public LongIntMap(int capacity) {
+        int n = 16;
+        while (n < capacity * 2) n <<= 1;
+        keys = new long[n];
+        values = new int[n];
+        Arrays.fill(values, -1);
+    }
+
+    // the value of the key, -1 if the key is not in the map
+    public int get(long key) {
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; values[i] != -1; i = (i + 1) & mask) {
+            if (keys[i] == key) return values[i];
+        }
+        return -1;
+    }
+
+    // add (or replace) the value of the key, value >= 0
+    public void put(long key, int value) {
+        if (value < 0) throw new IllegalArgumentException("Negative value: " + value);
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (values[i] != -1) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 2 > keys.length) rehash();
+    }
+
+    // remove the key if it is in the map, the entries after it (in its probe sequence) move back to close the gap
+    public void remove(long key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (values[i] != -1 && keys[i] != key) i = (i + 1) & mask;
+        if (values[i] == -1) return;
+        size--;
+        for (int j = (i + 1) & mask; values[j] != -1; j = (j + 1) & mask) {
+            int home = hash(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) { // the gap is between its home and it
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        values[i] = -1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        if (size == 0) return;
+        Arrays.fill(values, -1);
+        size = 0;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        Arrays.fill(values, -1);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != -1) put(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
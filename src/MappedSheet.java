@@ -0,0 +1,898 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A sheet kept in memory mapped files instead of the heap, for sheets larger than the memory:
+ * the heap use does not depend on the size of the sheet, the operating system pages the cells in when they are used.
+ * <pre>
+ * name.cells: a header (magic, version, width, height, epoch, generation, text end, dependencies end, the head of
+ *             the list of the cells referencing rows beyond the sheet), then a fixed size record per cell
+ *             (row by row): type, value kind, error, epoch, stamp, text offset, number, text length, depth,
+ *             the head of its list of dependents and the epoch of that list
+ * name.text:  the contents of the cells (UTF-8), appended at every set
+ * name.deps:  the lists of dependents: (dependent cell, text offset of its content, next entry) entries,
+ *             appended when a cell is set
+ * </pre>
+ * The files are mapped in segments on demand, sized from the size of the sheet (never used parts of the sheet
+ * are not mapped).
+ * A cell is used only if its epoch is the epoch of the sheet, so a load empties all the cells at once.
+ * Values are computed lazily, as needed by get/value/eval: a value is up to date only if its stamp is the current
+ * generation. A set marks the cell and the cells depending on it (directly or not) out of date, following the lists
+ * of dependents; an entry is only valid while its dependent still has the content it was added with (the same text
+ * offset), so a changed formula needs no removal. A cell referencing rows beyond the sheet is also in one more list,
+ * when the sheet grows it becomes a dependent of the cells in the new rows. A load starts a new generation instead.
+ * A stale cell is computed after the cells it references (Tarjan's algorithm, as in Ex2Sheet),
+ * so values, depths, types and cycles are the same as in Ex2Sheet. The formulas are compiled by shape (see Formula),
+ * and the last parsed contents are kept (a fixed number of them, see parsed).
+ * The width is fixed when the files are created, the sheet grows in height as needed.
+ * Old contents and dependents are not reclaimed from their files until the next load (which reads the whole file
+ * before it changes anything, see load(BufferedReader)).
+ */
+public class MappedSheet implements Sheet, Formula.Values, Closeable {
+    public static final int MAGIC = 0x4558324D; // "EX2M"
+    public static final int VERSION = 3;
+    private static final int HEADER = 64, RECORD = 56, DEPENDENT = 24;
+    private static final int STAGED = 12; // a cell staged by a load: its index and the length of its content
+    // the cells per mapped segment of the cell file: from the size of the sheet, within these bounds
+    private static final int MIN_SEGMENT_CELLS = 1 << 10, MAX_SEGMENT_CELLS = 1 << 20;
+    private static final int TEXT_PER_CELL = 64; // the bytes of text per segment cell, for the text segments
+    // the fields of a record
+    private static final int TYPE = 0, KIND = 1, ERROR = 2, EPOCH = 4, STAMP = 8, TEXT_OFFSET = 16, NUMBER = 24,
+            TEXT_LENGTH = 32, DEPTH = 36, DEPENDENTS = 40, DEPENDENTS_EPOCH = 48;
+    // the fields of an entry of a list of dependents (the next entry and the head of a list are offsets + 1, 0: none)
+    private static final int D_CELL = 0, D_TEXT_OFFSET = 8, D_NEXT = 16;
+    // the fields of the header
+    private static final int H_MAGIC = 0, H_VERSION = 4, H_WIDTH = 8, H_HEIGHT = 12, H_EPOCH = 16,
+            H_GENERATION = 24, H_TEXT_END = 32, H_DEPENDENTS_END = 40, H_BEYOND = 48;
+    private static final int PARSED_BITS = 12; // 2^PARSED_BITS contents are kept parsed (see parsed)
+    private static final long[] NO_REFERENCES = new long[0];
+
+    private final FileChannel cellFile;
+    private final Segments text, dependents;
+    private final MappedByteBuffer header;
+    private MappedByteBuffer[] cellSegments = new MappedByteBuffer[4];
+    private int segmentCells; // cells per mapped segment of the cell file
+    private long cellFileSize; // the mapped part of the cell file (the rest is empty cells)
+    private final int width;
+    private int height;
+    private int epoch; // the cells of older epochs are empty
+    private long generation; // values stamped with an older generation are out of date
+    private long textEnd, dependentsEnd; // the used parts of the text and dependents files
+    private final Formula.Templates templates = new Formula.Templates(); // the programs of the formulas, by shape
+    private final long[] parsedOffsets = new long[1 << PARSED_BITS]; // the text offset + 1 of each entry, 0: none
+    private final Parsed[] parsedContents = new Parsed[1 << PARSED_BITS];
+    private long computations, parses; // cells computed and contents parsed for that, statistics
+
+    private MappedSheet(String name, boolean create, int width, int height) throws IOException {
+        StandardOpenOption[] options = create
+                ? new StandardOpenOption[]{StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE}
+                : new StandardOpenOption[]{StandardOpenOption.READ, StandardOpenOption.WRITE};
+        cellFile = FileChannel.open(Paths.get(name + ".cells"), options);
+        Segments textSegments = null, dependentSegments = null;
+        try {
+            textSegments = new Segments(FileChannel.open(Paths.get(name + ".text"), options));
+            dependentSegments = new Segments(FileChannel.open(Paths.get(name + ".deps"), options));
+        } catch (IOException e) {
+            cellFile.close();
+            if (textSegments != null) textSegments.file.close();
+            throw e;
+        }
+        text = textSegments;
+        dependents = dependentSegments;
+        try {
+            if (!create && cellFile.size() < HEADER) throw new IOException("Not a mapped sheet: " + name);
+            header = cellFile.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+            cellFileSize = HEADER;
+            if (create) {
+                header.putInt(H_MAGIC, MAGIC).putInt(H_VERSION, VERSION).putInt(H_WIDTH, width)
+                        .putInt(H_HEIGHT, height).putInt(H_EPOCH, 1).putLong(H_GENERATION, 1).putLong(H_TEXT_END, 0)
+                        .putLong(H_DEPENDENTS_END, 0).putLong(H_BEYOND, 0);
+            } else if (header.getInt(H_MAGIC) != MAGIC) {
+                throw new IOException("Not a mapped sheet: " + name);
+            } else if (header.getInt(H_VERSION) != VERSION) {
+                throw new IOException("Unsupported mapped sheet version " + header.getInt(H_VERSION) + ": " + name);
+            }
+            this.width = header.getInt(H_WIDTH);
+            this.height = header.getInt(H_HEIGHT);
+            this.epoch = header.getInt(H_EPOCH);
+            this.generation = header.getLong(H_GENERATION);
+            this.textEnd = header.getLong(H_TEXT_END);
+            this.dependentsEnd = header.getLong(H_DEPENDENTS_END);
+            cellFileSize = cellFile.size();
+            // the segments grow with the sheet: a small sheet maps small segments
+            long cells = Math.max(1, (long) width * Math.max(1, height));
+            segmentCells = (int) Math.min(MAX_SEGMENT_CELLS, Math.max(MIN_SEGMENT_CELLS, Long.highestOneBit(cells - 1) << 1));
+            text.size = segmentCells * TEXT_PER_CELL;
+            dependents.size = segmentCells * DEPENDENT; // whole entries, so no entry is split between segments
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates an empty sheet in the files name.cells and name.text (replacing them if they exist).
+     * @param width the number of columns, fixed.
+     * @param height the initial number of rows, the sheet grows as needed.
+     */
+    public static MappedSheet create(String name, int width, int height) throws IOException {
+        if (width <= 0 || height < 0) throw new IllegalArgumentException("Invalid sheet size");
+        return new MappedSheet(name, true, width, height);
+    }
+
+    // opens a sheet created by create (and closed, or at least flushed)
+    public static MappedSheet open(String name) throws IOException {
+        return new MappedSheet(name, false, 0, 0);
+    }
+
+    // ****** the mapped files ******
+
+    // the segment holding the record of the cell, null if it was never mapped and create is false (an empty cell)
+    private MappedByteBuffer segment(long cell, boolean create) {
+        int s = (int) (cell / segmentCells);
+        if (s < cellSegments.length && cellSegments[s] != null) return cellSegments[s];
+        long start = HEADER + (long) s * segmentCells * RECORD, size = (long) segmentCells * RECORD;
+        if (!create && start >= cellFileSize) return null;
+        if (s >= cellSegments.length) cellSegments = Arrays.copyOf(cellSegments, Math.max(s + 1, s * 2));
+        try {
+            cellSegments[s] = cellFile.map(FileChannel.MapMode.READ_WRITE, start, size); // extends the file
+        } catch (IOException e) {
+            throw new IllegalStateException("Can not map the cells of the sheet", e);
+        }
+        cellFileSize = Math.max(cellFileSize, start + size);
+        return cellSegments[s];
+    }
+
+    // the position of the record of the cell in its segment
+    private int position(long cell) {
+        return (int) (cell % segmentCells) * RECORD;
+    }
+
+    // a file mapped in segments of the same size, on demand
+    private static final class Segments {
+        final FileChannel file;
+        int size; // bytes per segment
+        private MappedByteBuffer[] maps = new MappedByteBuffer[4];
+
+        Segments(FileChannel file) {
+            this.file = file;
+        }
+
+        // the segment holding the byte at the offset
+        MappedByteBuffer at(long offset) {
+            int s = (int) (offset / size);
+            if (s >= maps.length) maps = Arrays.copyOf(maps, Math.max(s + 1, s * 2));
+            if (maps[s] == null) {
+                try {
+                    maps[s] = file.map(FileChannel.MapMode.READ_WRITE, (long) s * size, size); // extends the file
+                } catch (IOException e) {
+                    throw new IllegalStateException("Can not map the sheet", e);
+                }
+            }
+            return maps[s];
+        }
+
+        void force() {
+            for (MappedByteBuffer b : maps) {
+                if (b != null) b.force();
+            }
+        }
+    }
+
+    // append the bytes to the text file, returns their offset
+    private long appendText(byte[] bytes) {
+        long offset = textEnd;
+        writeText(offset, bytes);
+        textEnd += bytes.length;
+        header.putLong(H_TEXT_END, textEnd);
+        return offset;
+    }
+
+    // write the bytes to the text file at the offset (across segments)
+    private void writeText(long offset, byte[] bytes) {
+        for (int done = 0; done < bytes.length; ) {
+            long at = offset + done;
+            int n = (int) Math.min(bytes.length - done, text.size - at % text.size);
+            text.at(at).put((int) (at % text.size), bytes, done, n);
+            done += n;
+        }
+    }
+
+    // read bytes.length bytes of the text file at the offset
+    private byte[] readText(long offset, byte[] bytes) {
+        for (int done = 0; done < bytes.length; ) {
+            long at = offset + done;
+            int n = (int) Math.min(bytes.length - done, text.size - at % text.size);
+            text.at(at).get((int) (at % text.size), bytes, done, n);
+            done += n;
+        }
+        return bytes;
+    }
+
+    // the content of a used cell
+    private String text(long cell) {
+        MappedByteBuffer b = segment(cell, false);
+        int p = position(cell);
+        byte[] bytes = readText(b.getLong(p + TEXT_OFFSET), new byte[b.getInt(p + TEXT_LENGTH)]);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // writes everything to the files
+    public void flush() {
+        header.force();
+        for (MappedByteBuffer b : cellSegments) {
+            if (b != null) b.force();
+        }
+        text.force();
+        dependents.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (header != null) flush();
+        } finally {
+            try {
+                cellFile.close();
+            } finally {
+                try {
+                    text.file.close();
+                } finally {
+                    dependents.file.close();
+                }
+            }
+        }
+    }
+
+    // ****** cells ******
+
+    private long index(int x, int y) {
+        return (long) y * width + x;
+    }
+
+    // true iff the cell has content (in this epoch)
+    private boolean used(long cell) {
+        if (cell >= (long) height * width) return false; // never set
+        MappedByteBuffer b = segment(cell, false);
+        int p = position(cell);
+        return b != null && b.getInt(p + EPOCH) == epoch && b.getInt(p + TEXT_LENGTH) >= 0;
+    }
+
+    @Override
+    public boolean isIn(int x, int y) {
+        return x >= 0 && x < width && y >= 0 && y < height;
+    }
+
+    @Override
+    public int width() {
+        return width;
+    }
+
+    @Override
+    public int height() {
+        return height;
+    }
+
+    // set a cell, a row beyond the current height grows the sheet (the width is fixed)
+    @Override
+    public void set(int x, int y, String c) {
+        if (x < 0 || y < 0 || x >= width || y == Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid cell coordinates");
+        }
+        if (y >= height) {
+            int old = height;
+            height = y + 1;
+            header.putInt(H_HEIGHT, height);
+            grown(old);
+        }
+        long cell = index(x, y);
+        if (c == null || c.trim().isEmpty()) {
+            store(cell, null, null);
+        } else {
+            CellLexer lexer = CellLexer.classify(c);
+            store(cell, Ex2Sheet.content(c, lexer).getBytes(StandardCharsets.UTF_8), lexer);
+        }
+        invalidate(cell);
+    }
+
+    // store the content (null for an empty cell) as the content of the cell, its value is out of date
+    private void store(long cell, byte[] bytes, CellLexer lexer) {
+        if (bytes == null) {
+            if (used(cell)) segment(cell, false).putInt(position(cell) + TEXT_LENGTH, -1);
+            return;
+        }
+        long offset = appendText(bytes);
+        MappedByteBuffer b = segment(cell, true);
+        int p = position(cell);
+        b.put(p + TYPE, (byte) lexer.getType());
+        b.put(p + KIND, Ex2Sheet.EMPTY_VALUE);
+        b.put(p + ERROR, lexer.getType() == Ex2Utils.ERR_FORM_FORMAT ? Ex2Sheet.FORM_ERROR : Ex2Sheet.NO_ERROR);
+        b.putInt(p + EPOCH, epoch);
+        b.putLong(p + STAMP, 0);
+        b.putLong(p + TEXT_OFFSET, offset);
+        b.putDouble(p + NUMBER, 0);
+        b.putInt(p + TEXT_LENGTH, bytes.length);
+        b.putInt(p + DEPTH, 0);
+        for (long ref : references(lexer, height)) addDependent(ref, cell, offset);
+        for (long key : lexer.getReferences()) {
+            if (CellKey.x(key) < width && CellKey.y(key) >= height) { // until the sheet grows (see grown)
+                header.putLong(H_BEYOND, appendDependent(cell, offset, header.getLong(H_BEYOND)) + 1);
+                break;
+            }
+        }
+    }
+
+    // add the cell (with the content at the text offset) to the dependents of ref
+    private void addDependent(long ref, long cell, long offset) {
+        MappedByteBuffer b = segment(ref, true);
+        int p = position(ref);
+        long head = b.getInt(p + DEPENDENTS_EPOCH) == epoch ? b.getLong(p + DEPENDENTS) : 0;
+        b.putLong(p + DEPENDENTS, appendDependent(cell, offset, head) + 1);
+        b.putInt(p + DEPENDENTS_EPOCH, epoch);
+    }
+
+    // append an entry to the dependents file (next is the entry after it + 1, 0: none), returns its offset
+    private long appendDependent(long cell, long offset, long next) {
+        long entry = dependentsEnd;
+        MappedByteBuffer d = dependents.at(entry);
+        int q = (int) (entry % dependents.size);
+        d.putLong(q + D_CELL, cell).putLong(q + D_TEXT_OFFSET, offset).putLong(q + D_NEXT, next);
+        dependentsEnd += DEPENDENT;
+        header.putLong(H_DEPENDENTS_END, dependentsEnd);
+        return entry;
+    }
+
+    /**
+     * The sheet grew from old rows: the cells in the list of cells referencing rows beyond the sheet become dependents
+     * of the cells they reference in the new rows, and leave the list once they reference no row beyond it.
+     * No value changes by that (a reference beyond the sheet and a reference to an empty cell are the same error),
+     * only a cell that is set in a new row changes the values of these cells, and now it has them as dependents.
+     */
+    private void grown(int old) {
+        long previous = -1; // the entry before in the list, -1: the head of the list is in the header
+        for (long entry = header.getLong(H_BEYOND) - 1; entry >= 0; ) {
+            MappedByteBuffer d = dependents.at(entry);
+            int q = (int) (entry % dependents.size);
+            long cell = d.getLong(q + D_CELL), offset = d.getLong(q + D_TEXT_OFFSET), next = d.getLong(q + D_NEXT) - 1;
+            boolean beyond = false;
+            if (used(cell) && segment(cell, false).getLong(position(cell) + TEXT_OFFSET) == offset) { // not changed
+                for (long key : CellLexer.classify(text(cell)).getReferences()) {
+                    int x = CellKey.x(key), y = CellKey.y(key);
+                    if (x >= width) continue;
+                    if (y >= height) {
+                        beyond = true;
+                    } else if (y >= old) {
+                        addDependent(index(x, y), cell, offset);
+                    }
+                }
+            }
+            if (beyond) {
+                previous = entry;
+            } else if (previous < 0) { // unlink the entry
+                header.putLong(H_BEYOND, next + 1);
+            } else {
+                dependents.at(previous).putLong((int) (previous % dependents.size) + D_NEXT, next + 1);
+            }
+            entry = next;
+        }
+    }
+
+    /**
+     * Marks the cell out of date, and the cells depending on it, directly or not (with an explicit stack).
+     * A cell that is already out of date is not followed: its dependents are too, as a cell is computed only after
+     * the cells it references.
+     */
+    private void invalidate(long cell) {
+        long[] work = new long[16];
+        int n = 0;
+        work[n++] = cell;
+        if (used(cell)) segment(cell, false).putLong(position(cell) + STAMP, 0);
+        while (n > 0) {
+            long c = work[--n];
+            MappedByteBuffer b = segment(c, false);
+            int p = position(c);
+            if (b == null || b.getInt(p + DEPENDENTS_EPOCH) != epoch) continue;
+            for (long entry = b.getLong(p + DEPENDENTS) - 1; entry >= 0; ) {
+                MappedByteBuffer d = dependents.at(entry);
+                int q = (int) (entry % dependents.size);
+                long dependent = d.getLong(q + D_CELL);
+                entry = d.getLong(q + D_NEXT) - 1;
+                if (!used(dependent) || stamp(dependent) != generation) continue; // empty, or already out of date
+                MappedByteBuffer db = segment(dependent, false);
+                int dp = position(dependent);
+                if (db.getLong(dp + TEXT_OFFSET) != d.getLong(q + D_TEXT_OFFSET)) continue; // its content changed
+                db.putLong(dp + STAMP, 0);
+                if (n == work.length) work = Arrays.copyOf(work, n * 2);
+                work[n++] = dependent;
+            }
+        }
+    }
+
+    @Override
+    public Cell get(int x, int y) {
+        if (!isIn(x, y)) return null;
+        long cell = index(x, y);
+        return used(cell) ? new MappedCell(this, cell, x, y) : EmptyCell.INSTANCE;
+    }
+
+    @Override
+    public Cell get(String entry) {
+        long key = CellKey.parse(entry);
+        return key == CellKey.NONE ? null : get(CellKey.x(key), CellKey.y(key));
+    }
+
+    @Override
+    public String value(int x, int y) {
+        return isIn(x, y) ? eval(x, y) : Ex2Utils.EMPTY_CELL;
+    }
+
+    @Override
+    public String eval(int x, int y) {
+        if (!isIn(x, y)) return Ex2Utils.EMPTY_CELL;
+        long cell = index(x, y);
+        if (!used(cell)) return Ex2Utils.EMPTY_CELL;
+        ensureComputed(cell);
+        MappedByteBuffer b = segment(cell, false);
+        int p = position(cell);
+        return Ex2Sheet.display(b.get(p + KIND), b.getDouble(p + NUMBER), cellData(cell));
+    }
+
+    // the number in a cell, as Ex2Sheet.evalNumber (also the values read by the formulas)
+    @Override
+    public double evalNumber(int x, int y) {
+        if (!isIn(x, y)) {
+            throw new IllegalArgumentException("Formula contains a reference out of the sheet: "
+                    + Ex2Sheet.convertCoordinatesToCellName(x, y));
+        }
+        long cell = index(x, y);
+        byte kind = Ex2Sheet.EMPTY_VALUE;
+        if (used(cell)) {
+            ensureComputed(cell);
+            kind = segment(cell, false).get(position(cell) + KIND);
+        }
+        if (kind == Ex2Sheet.NUMBER_VALUE) return segment(cell, false).getDouble(position(cell) + NUMBER);
+        if (kind == Ex2Sheet.EMPTY_VALUE) {
+            throw new IllegalArgumentException("Formula contains a reference to an empty cell: "
+                    + Ex2Sheet.convertCoordinatesToCellName(x, y));
+        }
+        throw new IllegalArgumentException("Formula contains a reference to a non numeric cell: "
+                + Ex2Sheet.convertCoordinatesToCellName(x, y));
+    }
+
+    // compute all the used cells
+    @Override
+    public void eval() {
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                long cell = index(x, y);
+                if (used(cell)) ensureComputed(cell);
+            }
+        }
+    }
+
+    @Override
+    public int[][] depth() {
+        int[][] ans = new int[width][height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                long cell = index(x, y);
+                if (used(cell)) ans[x][y] = cellOrder(cell);
+            }
+        }
+        return ans;
+    }
+
+    // the depth of a single cell, as Ex2Sheet.depth(x, y)
+    public int depth(int x, int y) {
+        if (!isIn(x, y)) throw new IllegalArgumentException("Invalid cell coordinates");
+        long cell = index(x, y);
+        return used(cell) ? cellOrder(cell) : 0;
+    }
+
+    // ****** computing ******
+
+    /**
+     * Computes the cell if its value is out of date, after the (out of date) cells it depends on.
+     * The cells are ordered with Tarjan's algorithm as in DependencyGraph.order (iterative, so long chains are fine),
+     * a strongly connected component with more than one cell, or a cell referencing itself, is a cycle.
+     * Only this walk is kept on the heap.
+     */
+    private void ensureComputed(long cell) {
+        if (!used(cell) || stamp(cell) == generation) return;
+        LongIntMap index = new LongIntMap(), low = new LongIntMap();
+        long[] stack = new long[16]; // the Tarjan stack
+        int sp = 0, top = 0, counter = 0;
+        // the depth first search: the cell, its parsed content, and the next reference to visit
+        long[] callCell = new long[16];
+        Parsed[] callParsed = new Parsed[16];
+        int[] callNext = new int[16];
+
+        long visit = cell;
+        while (true) {
+            if (visit >= 0) { // enter a cell
+                if (top == callCell.length) {
+                    int n = top * 2;
+                    callCell = Arrays.copyOf(callCell, n);
+                    callParsed = Arrays.copyOf(callParsed, n);
+                    callNext = Arrays.copyOf(callNext, n);
+                }
+                if (sp == stack.length) stack = Arrays.copyOf(stack, sp * 2);
+                index.put(visit, counter);
+                low.put(visit, counter++);
+                stack[sp++] = visit;
+                callCell[top] = visit;
+                callParsed[top] = parsed(visit);
+                callNext[top++] = 0;
+                visit = -1;
+            }
+            if (top == 0) return;
+            int f = top - 1;
+            long v = callCell[f];
+            if (callNext[f] < callParsed[f].refs.length) {
+                long w = callParsed[f].refs[callNext[f]++];
+                if (!used(w) || stamp(w) == generation) continue; // nothing to compute
+                int iw = index.get(w);
+                if (iw == -1) {
+                    visit = w;
+                } else { // visited and not computed yet: on the Tarjan stack
+                    low.put(v, Math.min(low.get(v), iw));
+                }
+                continue;
+            }
+            // all the references of v are done
+            top--;
+            if (top > 0) {
+                long parent = callCell[top - 1];
+                low.put(parent, Math.min(low.get(parent), low.get(v)));
+            }
+            if (low.get(v) == index.get(v)) { // v is the root of a component
+                int start = sp;
+                do {
+                    start--;
+                } while (stack[start] != v);
+                boolean cycle = sp - start > 1 || contains(callParsed[top].refs, v);
+                if (cycle) {
+                    for (int k = start; k < sp; k++) markCycle(stack[k]);
+                } else {
+                    computeCell(v, callParsed[top]);
+                }
+                sp = start;
+            }
+            callParsed[top] = null;
+        }
+    }
+
+    // the content of a used cell as computing it needs it
+    private static final class Parsed {
+        final int type;
+        final double number;
+        final long[] refs; // the cells it references, in the width of the sheet (also the ones beyond its height)
+        final Formula formula; // null if it is not a valid formula
+
+        Parsed(int type, double number, long[] refs, Formula formula) {
+            this.type = type;
+            this.number = number;
+            this.refs = refs;
+            this.formula = formula;
+        }
+    }
+
+    /**
+     * The parsed content of a used cell, from a cache of the last ones by text offset (in an epoch every content has
+     * its own offset), so a cell computed again is not classified and compiled again. The heap use is fixed.
+     */
+    private Parsed parsed(long cell) {
+        long offset = segment(cell, false).getLong(position(cell) + TEXT_OFFSET);
+        int k = (int) ((offset * 0x9E3779B97F4A7C15L) >>> (64 - PARSED_BITS));
+        if (parsedOffsets[k] == offset + 1) return parsedContents[k];
+        parses++;
+        String text = text(cell);
+        CellLexer lexer = CellLexer.classify(text);
+        int type = lexer.getType();
+        Formula formula = type == Ex2Utils.FORM
+                ? Formula.compile(text, lexer, (int) (cell % width), (int) (cell / width), templates) : null;
+        Parsed ans = new Parsed(type, type == Ex2Utils.NUMBER ? lexer.getNumber() : 0,
+                references(lexer, Integer.MAX_VALUE), formula);
+        parsedOffsets[k] = offset + 1;
+        parsedContents[k] = ans;
+        return ans;
+    }
+
+    // the number of contents parsed to compute cells (the others were kept parsed)
+    public long parses() {
+        return parses;
+    }
+
+    // the (distinct) cells in the width of the sheet and above the given row referenced by classified content
+    private long[] references(CellLexer lexer, int rows) {
+        long[] keys = lexer.getReferences();
+        if (keys.length == 0) return NO_REFERENCES;
+        long[] ans = new long[keys.length];
+        int n = 0;
+        for (long key : keys) {
+            if (CellKey.x(key) >= width || CellKey.y(key) >= rows) continue;
+            long cell = index(CellKey.x(key), CellKey.y(key));
+            boolean seen = false;
+            for (int k = 0; k < n && !seen; k++) seen = ans[k] == cell;
+            if (!seen) ans[n++] = cell;
+        }
+        return n == ans.length ? ans : Arrays.copyOf(ans, n);
+    }
+
+    private static boolean contains(long[] cells, long cell) {
+        for (long c : cells) {
+            if (c == cell) return true;
+        }
+        return false;
+    }
+
+    private long stamp(long cell) {
+        return segment(cell, false).getLong(position(cell) + STAMP);
+    }
+
+    // a cell on a cycle (or depending on one)
+    private void markCycle(long cell) {
+        MappedByteBuffer b = segment(cell, false);
+        int p = position(cell);
+        b.put(p + TYPE, (byte) Ex2Utils.ERR_CYCLE_FORM);
+        setValue(b, p, Ex2Sheet.ERR_CYCLE_VALUE, 0, -1);
+    }
+
+    // compute a cell whose references are up to date, as Ex2Sheet.computeCell
+    private void computeCell(long cell, Parsed content) {
+        computations++;
+        MappedByteBuffer b = segment(cell, false);
+        int p = position(cell);
+        int type = content.type;
+        b.put(p + TYPE, (byte) type);
+        int depth = 0;
+        if (type == Ex2Utils.FORM) {
+            for (long ref : content.refs) {
+                if (!used(ref)) continue;
+                int d = segment(ref, false).getInt(position(ref) + DEPTH);
+                if (d == -1) {
+                    markCycle(cell);
+                    return;
+                }
+                depth = Math.max(depth, d + 1);
+            }
+            depth = Math.max(depth, 1);
+        }
+
+        if (type == Ex2Utils.TEXT) {
+            String text = text(cell);
+            long key = CellKey.pack((int) (cell % width), (int) (cell / width));
+            if (CellKey.nameEquals(key, text)) { // the text is the cell's own name
+                b.put(p + TYPE, (byte) Ex2Utils.ERR_CYCLE_FORM);
+                setValue(b, p, Ex2Sheet.ERR_CYCLE_VALUE, 0, 0);
+            } else if (CellKey.nameContains(key, text)) {
+                b.put(p + TYPE, (byte) Ex2Utils.ERR_FORM_FORMAT);
+                setValue(b, p, Ex2Sheet.ERR_FORM_VALUE, 0, 0);
+            } else {
+                setValue(b, p, Ex2Sheet.TEXT_VALUE, 0, 0);
+            }
+        } else if (type == Ex2Utils.FORM) {
+            try {
+                double v = content.formula.evaluate(this);
+                setValue(b, p, Ex2Sheet.NUMBER_VALUE, v, depth);
+            } catch (IllegalArgumentException e) {
+                b.put(p + TYPE, (byte) Ex2Utils.ERR_FORM_FORMAT); // e.g., a reference to an empty or a text cell
+                setValue(b, p, Ex2Sheet.ERR_FORM_VALUE, 0, depth);
+            }
+        } else if (type == Ex2Utils.NUMBER) {
+            setValue(b, p, Ex2Sheet.NUMBER_VALUE, content.number, 0);
+        } else {
+            setValue(b, p, Ex2Sheet.ERR_FORM_VALUE, 0, 0);
+        }
+    }
+
+    // store a computed value, up to date in this generation
+    private void setValue(MappedByteBuffer b, int p, byte kind, double number, int depth) {
+        b.put(p + KIND, kind);
+        b.putDouble(p + NUMBER, number);
+        b.putInt(p + DEPTH, depth);
+        b.putLong(p + STAMP, generation);
+    }
+
+    // the number of cells computed so far (not counting the cells found on a cycle)
+    public long computations() {
+        return computations;
+    }
+
+    // ****** the fields of a cell, as seen through its MappedCell view ******
+
+    String cellData(long cell) {
+        return Ex2Sheet.data(segment(cell, false).get(position(cell) + ERROR), text(cell));
+    }
+
+    String cellLine(long cell) {
+        return text(cell);
+    }
+
+    int cellType(long cell) {
+        ensureComputed(cell);
+        return segment(cell, false).get(position(cell) + TYPE);
+    }
+
+    void setCellType(long cell, int type) {
+        segment(cell, false).put(position(cell) + TYPE, (byte) type);
+    }
+
+    int cellOrder(long cell) {
+        ensureComputed(cell);
+        return segment(cell, false).getInt(position(cell) + DEPTH);
+    }
+
+    void setCellOrder(long cell, int order) {
+        segment(cell, false).putInt(position(cell) + DEPTH, order);
+    }
+
+    void setCellError(long cell, String err) {
+        byte code;
+        if (err == null || err.isEmpty()) {
+            code = Ex2Sheet.NO_ERROR;
+        } else if (err.equals(Ex2Utils.ERR_FORM)) {
+            code = Ex2Sheet.FORM_ERROR;
+        } else if (err.equals(Ex2Utils.ERR_CYCLE)) {
+            code = Ex2Sheet.CYCLE_ERROR;
+        } else {
+            throw new IllegalArgumentException("Unknown error: " + err);
+        }
+        segment(cell, false).put(position(cell) + ERROR, code);
+    }
+
+    // ****** the text format of Ex2Sheet.save ******
+
+    @Override
+    public void save(String fileName) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileName))) {
+            writer.write("I2CS ArielU: SpreadSheet (Ex2) assignment - this line should be ignored\n");
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    long cell = index(x, y);
+                    if (used(cell)) writer.write(x + "," + y + "," + cellData(cell) + "\n");
+                }
+            }
+        }
+    }
+
+    // all the old cells are emptied at once (a new epoch), lines with a wrong format or out of the width are ignored
+    @Override
+    public void load(String fileName) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+            load(reader);
+        }
+    }
+
+    /**
+     * Loads the lines of the text format in two passes, so a load that fails keeps the sheet as it was.
+     * The file is read first: its cells are staged (cell, length, content) after the used part of the text file,
+     * which is not used yet. Only once it was read completely the sheet switches to a new epoch and the staged cells
+     * are stored, their contents moved down to the start of the text file (over the old ones, behind the staged
+     * cells not stored yet, as a content takes less room than its staged cell).
+     */
+    void load(BufferedReader reader) throws IOException {
+        long start = textEnd, end = start;
+        int maxY = -1;
+        reader.readLine(); // the header
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            int comma1 = line.indexOf(','), comma2 = comma1 < 0 ? -1 : line.indexOf(',', comma1 + 1);
+            if (comma2 < 0) continue;
+            int x, y;
+            try {
+                x = Integer.parseInt(line.substring(0, comma1));
+                y = Integer.parseInt(line.substring(comma1 + 1, comma2));
+            } catch (NumberFormatException e) {
+                continue; // not a cell line
+            }
+            if (x < 0 || x >= width || y < 0 || y == Integer.MAX_VALUE) continue;
+            String c = line.substring(comma2 + 1);
+            byte[] bytes = c.trim().isEmpty() ? null
+                    : Ex2Sheet.content(c, CellLexer.classify(c)).getBytes(StandardCharsets.UTF_8);
+            writeText(end, ByteBuffer.allocate(STAGED).putLong(index(x, y)).putInt(bytes == null ? -1 : bytes.length)
+                    .array());
+            if (bytes != null) writeText(end + STAGED, bytes);
+            end += STAGED + (bytes == null ? 0 : bytes.length);
+            maxY = Math.max(maxY, y);
+        }
+
+        // the file was read: switch to the new epoch, the old contents and dependents are not used anymore
+        header.putInt(H_EPOCH, ++epoch);
+        textEnd = 0;
+        dependentsEnd = 0;
+        header.putLong(H_TEXT_END, textEnd).putLong(H_DEPENDENTS_END, dependentsEnd).putLong(H_BEYOND, 0);
+        templates.clear();
+        Arrays.fill(parsedOffsets, 0); // the offsets of the new contents start over
+        Arrays.fill(parsedContents, null);
+        if (maxY >= height) {
+            height = maxY + 1;
+            header.putInt(H_HEIGHT, height);
+        }
+        byte[] staged = new byte[STAGED];
+        for (long at = start; at < end; ) {
+            ByteBuffer cell = ByteBuffer.wrap(readText(at, staged));
+            long index = cell.getLong();
+            int n = cell.getInt();
+            at += STAGED;
+            if (n < 0) {
+                store(index, null, null);
+                continue;
+            }
+            byte[] bytes = readText(at, new byte[n]);
+            at += n;
+            store(index, bytes, CellLexer.classify(new String(bytes, StandardCharsets.UTF_8)));
+        }
+        header.putLong(H_GENERATION, ++generation);
+    }
+
+    // a view of a used cell of a MappedSheet (see SCell)
+    private static final class MappedCell implements Cell {
+        private final MappedSheet sheet;
+        private final long cell;
+        private final int x, y;
+
+        MappedCell(MappedSheet sheet, long cell, int x, int y) {
+            this.sheet = sheet;
+            this.cell = cell;
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public String getData() {
+            return sheet.cellData(cell);
+        }
+
+        @Override
+        public void setData(String s) {
+            sheet.set(x, y, s);
+        }
+
+        @Override
+        public String getLine() {
+            return sheet.cellLine(cell);
+        }
+
+        @Override
+        public int getType() {
+            return sheet.cellType(cell);
+        }
+
+        @Override
+        public void setType(int t) {
+            sheet.setCellType(cell, t);
+        }
+
+        @Override
+        public int getOrder() {
+            return sheet.cellOrder(cell);
+        }
+
+        @Override
+        public void setOrder(int t) {
+            sheet.setCellOrder(cell, t);
+        }
+
+        @Override
+        public void setError(String error) {
+            sheet.setCellError(cell, error);
+        }
+
+        @Override
+        public String toString() {
+            return getData();
+        }
+    }
+}
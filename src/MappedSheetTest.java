@@ -0,0 +1,182 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class MappedSheetTest {
+
+    private static String name() throws IOException {
+        Path dir = Files.createTempDirectory("mapped");
+        dir.toFile().deleteOnExit();
+        dir.resolve("sheet.cells").toFile().deleteOnExit();
+        dir.resolve("sheet.text").toFile().deleteOnExit();
+        dir.resolve("sheet.deps").toFile().deleteOnExit();
+        return dir.resolve("sheet").toString();
+    }
+
+    @Test
+    public void testSameAsEx2Sheet() throws IOException {
+        String[][] cells = {
+                {"1", "=A0+1", "=A1*2", "hello", "=B0"},
+                {"=A2+A0", "text", "=B1+1", "=(1+", "B4"},
+                {"=C1", "=C0", "=C0+1", "=Z99", "=E1/0"},
+                {"a5", "=D0*2", "-2.5", "=D2*D2", ""},
+        };
+        Ex2Sheet expected = new Ex2Sheet(5, 5);
+        try (MappedSheet sheet = MappedSheet.create(name(), 5, 5)) {
+            for (int x = 0; x < cells.length; x++) {
+                for (int y = 0; y < cells[x].length; y++) {
+                    expected.set(x, y, cells[x][y]);
+                    sheet.set(x, y, cells[x][y]);
+                }
+            }
+            for (int round = 0; round < 2; round++) {
+                for (int x = 0; x < 5; x++) {
+                    for (int y = 0; y < 5; y++) {
+                        String at = x + "," + y;
+                        assertEquals(expected.value(x, y), sheet.value(x, y), at);
+                        assertEquals(expected.depth(x, y), sheet.depth(x, y), at);
+                        assertEquals(expected.get(x, y).getType(), sheet.get(x, y).getType(), at);
+                        assertEquals(expected.get(x, y).getData(), sheet.get(x, y).getData(), at);
+                    }
+                }
+                expected.set(0, 0, "7"); // dependents are recomputed
+                sheet.set(0, 0, "7");
+                expected.set(2, 1, "4"); // the cycle is broken
+                sheet.set(2, 1, "4");
+            }
+            assertSame(EmptyCell.INSTANCE, sheet.get(4, 3));
+            assertNull(sheet.get(5, 0));
+            assertThrows(IllegalArgumentException.class, () -> sheet.set(5, 0, "1"), "the width is fixed");
+        }
+    }
+
+    @Test
+    public void testReopenAndGrow() throws IOException {
+        String name = name();
+        try (MappedSheet sheet = MappedSheet.create(name, 3, 10)) {
+            sheet.set(0, 0, "2");
+            sheet.set(1, 3000000, "=A0*21"); // another segment, the sheet grows
+            assertEquals(3000001, sheet.height());
+            assertEquals("42.0", sheet.value(1, 3000000));
+        }
+        try (MappedSheet sheet = MappedSheet.open(name)) {
+            assertEquals(3000001, sheet.height());
+            assertEquals("42.0", sheet.value(1, 3000000));
+            assertEquals("=A0*21", sheet.get("B3000000").getLine());
+
+            File file = File.createTempFile("sheet", ".txt");
+            file.deleteOnExit();
+            sheet.save(file.getPath());
+            sheet.set(2, 2, "old");
+            sheet.load(file.getPath());
+            assertEquals(Ex2Utils.EMPTY_CELL, sheet.value(2, 2), "a load empties the old cells");
+            assertEquals("42.0", sheet.value(1, 3000000));
+        }
+        assertThrows(IOException.class, () -> MappedSheet.open(name + ".missing"));
+    }
+
+    @Test
+    public void testFailedLoadKeepsTheSheet() throws IOException {
+        String name = name();
+        try (MappedSheet sheet = MappedSheet.create(name, 3, 10)) {
+            sheet.set(0, 0, "2");
+            sheet.set(1, 1, "=A0*3");
+            sheet.set(2, 2, "hello");
+            String lines = "header\n0,0,5\n1,1,=A0+1\n0,50,7\n";
+            java.io.Reader failing = new java.io.StringReader(lines) {
+                private int read;
+
+                @Override
+                public int read(char[] buf, int off, int len) throws IOException {
+                    if (read >= lines.length()) throw new IOException("disk error");
+                    int n = super.read(buf, off, len);
+                    if (n > 0) read += n;
+                    return n;
+                }
+            };
+            assertThrows(IOException.class, () -> sheet.load(new java.io.BufferedReader(failing)));
+            assertEquals(10, sheet.height());
+            assertEquals("2.0", sheet.value(0, 0));
+            assertEquals("6.0", sheet.value(1, 1));
+            assertEquals("hello", sheet.value(2, 2));
+            sheet.set(0, 0, "4"); // still live
+            assertEquals("12.0", sheet.value(1, 1));
+
+            sheet.load(new java.io.BufferedReader(new java.io.StringReader(lines + "2,2,\n2,3,=B1*2\n")));
+            assertEquals(51, sheet.height());
+            assertEquals("5.0", sheet.value(0, 0));
+            assertEquals("6.0", sheet.value(1, 1));
+            assertEquals(Ex2Utils.EMPTY_CELL, sheet.value(2, 2));
+            assertEquals("12.0", sheet.value(2, 3));
+            assertEquals("7.0", sheet.value(0, 50));
+            sheet.set(0, 0, "1"); // the loaded dependents are live
+            assertEquals("4.0", sheet.value(2, 3));
+        }
+    }
+
+    @Test
+    public void testOnlyDependentsRecomputed() throws IOException {
+        String name = name();
+        try (MappedSheet sheet = MappedSheet.create(name, 3, 100)) {
+            for (int y = 0; y < 100; y++) {
+                sheet.set(0, y, "" + y);
+                sheet.set(1, y, "=A" + y + "*2");
+            }
+            sheet.set(2, 0, "=B50+B51");
+            sheet.eval();
+            long computed = sheet.computations();
+            sheet.set(0, 50, "7");
+            sheet.eval();
+            assertEquals(computed + 3, sheet.computations(), "A50, B50 and C0");
+            assertEquals("14.0", sheet.value(1, 50));
+            assertEquals("116.0", sheet.value(2, 0));
+            sheet.set(1, 50, "=A49");
+            sheet.set(0, 50, "1000"); // B50 no longer depends on it
+            sheet.eval();
+            assertEquals("49.0", sheet.value(1, 50));
+            assertEquals(computed + 6, sheet.computations(), "B50, C0, then A50");
+
+            sheet.set(2, 1, "=A100"); // out of the sheet, until it grows
+            sheet.set(2, 2, "=A300+1");
+            assertEquals(Ex2Utils.ERR_FORM, sheet.value(2, 1));
+            sheet.eval();
+            computed = sheet.computations();
+            long parses = sheet.parses();
+            sheet.set(0, 100, "5"); // only C1 depends on the new row
+            sheet.eval();
+            assertEquals("5.0", sheet.value(2, 1));
+            assertEquals(computed + 2, sheet.computations(), "A100 and C1");
+            assertEquals(parses + 1, sheet.parses(), "only the new content, C1 was kept parsed");
+            sheet.set(1, 200, "x"); // C2 still references a row beyond the sheet
+            sheet.set(0, 300, "9");
+            assertEquals("10.0", sheet.value(2, 2));
+            sheet.set(0, 0, "1");
+            sheet.eval();
+            assertEquals(computed + 7, sheet.computations(), "B200, A300, C2, then A0 and B0");
+        }
+        try (MappedSheet sheet = MappedSheet.open(name)) {
+            long computed = sheet.computations();
+            assertEquals("49.0", sheet.value(1, 50)); // the values are kept
+            sheet.set(0, 49, "3");
+            assertEquals("3.0", sheet.value(1, 50));
+            assertEquals(computed + 2, sheet.computations());
+        }
+    }
+
+    @Test
+    public void testSmallSheetSmallFiles() throws IOException {
+        String name = name();
+        try (MappedSheet sheet = MappedSheet.create(name, 5, 5)) {
+            sheet.set(0, 0, "1");
+            sheet.set(1, 1, "=A0+1");
+            assertEquals("2.0", sheet.value(1, 1));
+        }
+        for (String file : new String[]{".cells", ".text", ".deps"}) {
+            assertTrue(new File(name + file).length() <= 1 << 16, file);
+        }
+    }
+}
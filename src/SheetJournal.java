@@ -0,0 +1,427 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead journal of the edits of a sheet, so edits are not lost between saves and a save does not
+ * rewrite the whole sheet for every edit.
+ * Every set() of the sheet is appended to the journal as a record (x, y, the new content), the records are
+ * written in groups: one write and one fsync for all the records of the last GROUP_COMMIT_MILLIS
+ * (sync() forces them at once). The edits of a batch are written when it is committed, a rolled back batch
+ * is not written at all.
+ * Once the journal grows beyond CHECKPOINT_BYTES, a checkpoint (a full copy of the sheet, in the text format
+ * of Ex2Sheet.save) is written in the background and the journal files it covers are deleted.
+ * <pre>
+ * files: name.checkpoint, name.journal.1, name.journal.2, ... (a new journal file is started at every checkpoint)
+ * checkpoint: the header line ends with "covers journal n", the last journal file it contains
+ * journal: groups of [payload length, CRC32 of the payload, records], a record is x, y, length, UTF-8 content
+ *          (length -1 for an empty cell)
+ * </pre>
+ * open() recovers the sheet: the checkpoint is loaded and the journal files after the ones it covers are replayed
+ * in order, in one batch (a single recalculation). A torn group at the end of a journal (a crash during a write)
+ * is ignored, and covered journal files that were not deleted (a crash right after the checkpoint) are skipped.
+ */
+public class SheetJournal implements Closeable {
+    public static final long GROUP_COMMIT_MILLIS = 20;
+    public static final long CHECKPOINT_BYTES = 8 << 20;
+    private static final String CHECKPOINT = ".checkpoint", JOURNAL = ".journal.";
+    private static final String HEADER = "I2CS ArielU: SpreadSheet (Ex2) assignment - this line should be ignored";
+    private static final String COVERS = ", covers journal ";
+    private static final int MAX_GROUP = 1 << 30;
+
+    private final Ex2Sheet sheet;
+    private final String name;
+    private final ScheduledExecutorService background; // group commits and checkpoints
+    private FileChannel channel; // the current journal file
+    private long generation; // the number of the current journal file
+    private long journalBytes; // written since the last checkpoint
+    private final Object writeLock = new Object(); // the channel, generation and journalBytes
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(); // records not yet written (under this)
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream(); // the records of the open batch
+    private boolean inBatch;
+    private boolean replacedInBatch; // the open batch loaded the sheet, checkpoint when it is committed
+    private Future<?> checkpoint; // the running checkpoint
+    private IOException failure; // the first background failure, reported by the next sync or close
+    private long records, groups;
+
+    private SheetJournal(Ex2Sheet sheet, String name, long generation) throws IOException {
+        this.sheet = sheet;
+        this.name = name;
+        this.generation = generation;
+        this.channel = openJournal(generation);
+        this.background = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sheet-journal");
+            t.setDaemon(true);
+            return t;
+        });
+        background.scheduleWithFixedDelay(this::groupCommit, GROUP_COMMIT_MILLIS, GROUP_COMMIT_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Recovers the sheet from the files of the given journal (if there are any) and journals its edits from now on.
+     * @param sheet the sheet, its content is replaced if there is something to recover.
+     * @param name the path of the journal files, without their suffix.
+     */
+    public static SheetJournal open(Ex2Sheet sheet, String name) throws IOException {
+        if (sheet.inBatch()) throw new IllegalStateException("Can not open a journal during a batch");
+        List<Path> journals = journalFiles(name);
+        Path checkpoint = Paths.get(name + CHECKPOINT);
+        long covered = Files.exists(checkpoint) ? covered(checkpoint) : 0;
+        if (Files.exists(checkpoint) || !journals.isEmpty()) {
+            sheet.beginBatch(); // the checkpoint and all the records, then one recalculation
+            try {
+                if (Files.exists(checkpoint)) sheet.load(checkpoint.toString());
+                for (Path journal : journals) {
+                    if (generation(journal) > covered) replay(sheet, journal); // the others are in the checkpoint
+                }
+            } catch (IOException | RuntimeException e) {
+                if (sheet.inBatch()) sheet.rollback(); // a failed load already rolled back
+                throw e;
+            }
+            sheet.commit();
+        }
+        long last = journals.isEmpty() ? 0 : generation(journals.get(journals.size() - 1));
+        for (Path journal : journals) {
+            if (generation(journal) <= covered) Files.delete(journal); // left by a crash during a checkpoint
+        }
+        SheetJournal ans = new SheetJournal(sheet, name, Math.max(last, covered) + 1);
+        sheet.setJournal(ans);
+        return ans;
+    }
+
+    // ****** called by the sheet ******
+
+    // append a set() of the sheet, content is null for an empty cell
+    void record(int x, int y, String content) {
+        synchronized (this) {
+            DataOutputStream data = new DataOutputStream(inBatch ? batch : pending);
+            try {
+                data.writeInt(x);
+                data.writeInt(y);
+                if (content == null) {
+                    data.writeInt(-1);
+                } else {
+                    byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+                    data.writeInt(bytes.length);
+                    data.write(bytes);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // not thrown by a ByteArrayOutputStream
+            }
+            records++;
+        }
+        if (!inBatch) edited();
+    }
+
+    // the outermost batch of the sheet began
+    void beginBatch() {
+        inBatch = true;
+    }
+
+    // the outermost batch was committed, its records are written with the next group
+    void commitBatch() {
+        inBatch = false;
+        synchronized (this) {
+            pending.writeBytes(batch.toByteArray());
+        }
+        batch.reset();
+        if (replacedInBatch) {
+            replacedInBatch = false;
+            try {
+                checkpointNow();
+            } catch (IOException e) {
+                failed(e);
+            }
+        } else {
+            edited();
+        }
+    }
+
+    // the batch was rolled back, its records are dropped
+    void rollbackBatch() {
+        inBatch = false;
+        replacedInBatch = false;
+        batch.reset();
+    }
+
+    /**
+     * The content of the sheet was replaced (a load), which is not described by records:
+     * a checkpoint is written at once (or when the open batch is committed).
+     */
+    void replaced() throws IOException {
+        if (inBatch) {
+            replacedInBatch = true;
+        } else {
+            checkpointNow();
+        }
+    }
+
+    // start a checkpoint once the journal is large enough
+    private void edited() {
+        long bytes;
+        synchronized (writeLock) {
+            bytes = journalBytes;
+        }
+        synchronized (this) {
+            bytes += pending.size();
+        }
+        if (bytes >= CHECKPOINT_BYTES && (checkpoint == null || checkpoint.isDone())) checkpoint();
+    }
+
+    // ****** group commit ******
+
+    // write all the pending records as one group and fsync once
+    private void groupCommit() {
+        try {
+            flush();
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    // keep the first failure of the background work, it is thrown by the next sync (or close)
+    private synchronized void failed(IOException e) {
+        if (failure == null) failure = e;
+    }
+
+    private void flush() throws IOException {
+        synchronized (writeLock) {
+            byte[] payload;
+            synchronized (this) {
+                if (pending.size() == 0) return;
+                payload = pending.toByteArray();
+                pending = new ByteArrayOutputStream();
+            }
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            ByteBuffer group = ByteBuffer.allocate(8 + payload.length);
+            group.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+            while (group.hasRemaining()) channel.write(group);
+            channel.force(false);
+            journalBytes += group.capacity();
+            groups++;
+        }
+    }
+
+    // write the pending records and wait for them to reach the disk
+    public void sync() throws IOException {
+        flush();
+        synchronized (this) {
+            if (failure != null) throw failure;
+        }
+    }
+
+    // ****** checkpoints ******
+
+    /**
+     * Starts a checkpoint: the cells are copied now (on the thread of the sheet, between edits), a new journal file
+     * is started, and the copy is written (and the older journal files deleted) in the background.
+     */
+    public void checkpoint() {
+        Runnable write = prepareCheckpoint();
+        if (write != null) checkpoint = background.submit(write);
+    }
+
+    // a checkpoint written before returning
+    private void checkpointNow() throws IOException {
+        awaitCheckpoint();
+        Runnable write = prepareCheckpoint();
+        if (write != null) write.run();
+        sync();
+    }
+
+    // copy the cells and rotate the journal, returns the writing of the checkpoint (null if it failed)
+    private Runnable prepareCheckpoint() {
+        if (inBatch) throw new IllegalStateException("Can not checkpoint during a batch");
+        int n = 0;
+        for (int slot = 0; slot < sheet.slotCount(); slot++) {
+            if (sheet.isUsed(slot)) n++;
+        }
+        int[] xs = new int[n], ys = new int[n];
+        String[] data = new String[n];
+        n = 0;
+        for (int slot = 0; slot < sheet.slotCount(); slot++) {
+            if (sheet.isUsed(slot)) {
+                xs[n] = sheet.slotX(slot);
+                ys[n] = sheet.slotY(slot);
+                data[n++] = sheet.cellLine(slot); // the content as set, not an error message
+            }
+        }
+        long covered;
+        try {
+            synchronized (writeLock) {
+                flush();
+                channel.close();
+                covered = generation++;
+                channel = openJournal(generation);
+                journalBytes = 0;
+            }
+        } catch (IOException e) {
+            failed(e);
+            return null;
+        }
+        return () -> {
+            try {
+                writeCheckpoint(xs, ys, data, covered);
+            } catch (IOException e) {
+                failed(e);
+            }
+        };
+    }
+
+    // write the cells (as Ex2Sheet.save), replace the checkpoint, then delete the journal files up to covered
+    private void writeCheckpoint(int[] xs, int[] ys, String[] data, long covered) throws IOException {
+        Path tmp = Paths.get(name + CHECKPOINT + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(file, Charset.defaultCharset()))) {
+            writer.write(HEADER + COVERS + covered + "\n"); // so a journal file that is not deleted is not replayed
+            for (int i = 0; i < xs.length; i++) {
+                if (!data[i].trim().isEmpty()) writer.write(xs[i] + "," + ys[i] + "," + data[i] + "\n");
+            }
+            writer.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp, Paths.get(name + CHECKPOINT), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        for (Path journal : journalFiles(name)) {
+            if (generation(journal) <= covered) Files.delete(journal);
+        }
+    }
+
+    private void awaitCheckpoint() throws IOException {
+        if (checkpoint == null) return;
+        try {
+            checkpoint.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a checkpoint", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Checkpoint failed", e.getCause());
+        }
+    }
+
+    // write everything, wait for the running checkpoint, and stop journaling the sheet
+    @Override
+    public void close() throws IOException {
+        sheet.setJournal(null);
+        background.shutdown();
+        try {
+            awaitCheckpoint();
+            sync();
+        } finally {
+            synchronized (writeLock) {
+                channel.close();
+            }
+        }
+    }
+
+    // number of records appended (also the ones of rolled back batches) and number of groups written
+    public synchronized long records() {
+        return records;
+    }
+
+    public long groups() {
+        synchronized (writeLock) {
+            return groups;
+        }
+    }
+
+    // ****** recovery ******
+
+    // apply the records of a journal file, up to its first torn or corrupted group
+    private static void replay(Ex2Sheet sheet, Path journal) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(journal));
+        while (data.remaining() >= 8) {
+            int length = data.getInt(), crc = data.getInt();
+            if (length < 0 || length > data.remaining() || length > MAX_GROUP) return;
+            CRC32 check = new CRC32();
+            check.update(data.array(), data.position(), length);
+            if ((int) check.getValue() != crc) return;
+            ByteBuffer group = data.slice();
+            group.limit(length);
+            data.position(data.position() + length);
+            try {
+                while (group.hasRemaining()) {
+                    int x = group.getInt(), y = group.getInt(), n = group.getInt();
+                    String content = null;
+                    if (n >= 0) {
+                        byte[] bytes = new byte[n];
+                        group.get(bytes);
+                        content = new String(bytes, StandardCharsets.UTF_8);
+                    }
+                    sheet.set(x, y, content);
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Corrupted journal group in " + journal, e);
+            }
+        }
+    }
+
+    // the last journal file contained in a checkpoint, 0 for a checkpoint that does not say (all are replayed)
+    private static long covered(Path checkpoint) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(checkpoint))) {
+            for (int b = in.read(); b != -1 && b != '\n'; b = in.read()) line.write(b);
+        }
+        String header = line.toString(Charset.defaultCharset());
+        int at = header.lastIndexOf(COVERS);
+        if (at < 0) return 0;
+        try {
+            return Long.parseLong(header.substring(at + COVERS.length()).trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid checkpoint header: " + checkpoint, e);
+        }
+    }
+
+    // the journal files of the given name, in order
+    private static List<Path> journalFiles(String name) throws IOException {
+        Path base = Paths.get(name).toAbsolutePath();
+        String prefix = base.getFileName() + JOURNAL;
+        List<Path> ans = new ArrayList<>();
+        try (Stream<Path> files = Files.list(base.getParent())) {
+            files.forEach(f -> {
+                String file = f.getFileName().toString();
+                if (file.startsWith(prefix) && file.substring(prefix.length()).matches("\\d{1,18}")) ans.add(f);
+            });
+        }
+        ans.sort((a, b) -> Long.compare(generation(a), generation(b)));
+        return ans;
+    }
+
+    private static long generation(Path journal) {
+        String file = journal.getFileName().toString();
+        return Long.parseLong(file.substring(file.lastIndexOf('.') + 1));
+    }
+
+    private FileChannel openJournal(long generation) throws IOException {
+        return FileChannel.open(Paths.get(name + JOURNAL + generation), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+}
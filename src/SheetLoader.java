@@ -0,0 +1,317 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Loads the text format of Ex2Sheet.save (a header line, then x,y,data per cell) in bulk.
+ * The file is read into one array (not mapped, so it can be saved over right after) and cut into chunks at line
+ * boundaries. The chunks are parsed (without regular
+ * expressions or split) and their cells are classified and compiled in parallel, since that does not depend on
+ * the other cells. The cells are then stored in file order (a later line for the same cell wins), and the caller
+ * recalculates the sheet once.
+ * Lines with a wrong format or a negative coordinate are ignored, the sheet grows to fit the other ones.
+ * <p>
+ * A file written by Ex2Sheet.save(fileName, true) also has "#value,x,y,kind,number,depth" lines (the computed
+ * value of each cell with references) and ends with a "#hash,..." line, a hash of all the lines before it
+ * (but the header). Other readers skip these lines as malformed. If the hash matches, the stored values are used
+ * as they are and only the cells without references are computed (in one pass, without evaluating any formula);
+ * otherwise (e.g., the file was edited) the values are ignored and the sheet is recalculated as usual.
+ */
+class SheetLoader {
+    private static final int MIN_CHUNK = 1 << 16; // smaller files are parsed in one chunk
+    private static final long[] NO_REFERENCES = new long[0];
+    static final String VALUE_PREFIX = "#value,", HASH_PREFIX = "#hash,";
+    static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L; // odd, so the line hashes are combined without loss
+
+    private final Ex2Sheet sheet;
+    private final ForkJoinPool pool;
+
+    SheetLoader(Ex2Sheet sheet, ForkJoinPool pool) {
+        this.sheet = sheet;
+        this.pool = pool;
+    }
+
+    // the parsed cells of one chunk of the file, in file order
+    private static final class Chunk {
+        final Ex2Sheet sheet; // compiles the formulas, sharing the programs of the same shapes (across chunks)
+        int size;
+        int[] xs = new int[64], ys = new int[64];
+        String[] contents = new String[64];
+        byte[] types = new byte[64];
+        long[][] refs = new long[64][];
+        Formula[] formulas = new Formula[64];
+        int maxX = -1, maxY = -1;
+        // the #value lines
+        int values;
+        int[] vxs = new int[0], vys = new int[0], vdepths = new int[0];
+        byte[] vkinds = new byte[0];
+        double[] vnumbers = new double[0];
+        // the hash of the lines of this chunk (but a #hash line), the number of these lines, and the #hash line
+        long hash, lines, storedHash;
+        boolean hasHash;
+
+        Chunk(Ex2Sheet sheet) {
+            this.sheet = sheet;
+        }
+
+        void addValue(int x, int y, byte kind, double number, int depth) {
+            if (values == vxs.length) {
+                int n = Math.max(64, values * 2);
+                vxs = Arrays.copyOf(vxs, n);
+                vys = Arrays.copyOf(vys, n);
+                vkinds = Arrays.copyOf(vkinds, n);
+                vnumbers = Arrays.copyOf(vnumbers, n);
+                vdepths = Arrays.copyOf(vdepths, n);
+            }
+            vxs[values] = x;
+            vys[values] = y;
+            vkinds[values] = kind;
+            vnumbers[values] = number;
+            vdepths[values] = depth;
+            values++;
+        }
+
+        void add(int x, int y, String text) {
+            if (size == xs.length) {
+                int n = size * 2;
+                xs = Arrays.copyOf(xs, n);
+                ys = Arrays.copyOf(ys, n);
+                contents = Arrays.copyOf(contents, n);
+                types = Arrays.copyOf(types, n);
+                refs = Arrays.copyOf(refs, n);
+                formulas = Arrays.copyOf(formulas, n);
+            }
+            xs[size] = x;
+            ys[size] = y;
+            types[size] = (byte) Ex2Utils.TEXT;
+            refs[size] = NO_REFERENCES;
+            if (text != null) { // only the results of the lexer are kept, not its tokens
+                CellLexer lexer = CellLexer.classify(text);
+                contents[size] = Ex2Sheet.content(text, lexer);
+                types[size] = (byte) lexer.getType();
+                refs[size] = lexer.getReferences();
+                formulas[size] = sheet.compile(x, y, text, lexer);
+            }
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+            size++;
+        }
+    }
+
+    // parse the file and store its cells in the sheet (which should be in a batch, nothing is recalculated here)
+    void load(String fileName) throws IOException {
+        byte[] data;
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("File is too large: " + fileName);
+            data = new byte[(int) channel.size()];
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) throw new IOException("Unexpected end of file: " + fileName);
+            }
+        }
+        int size = data.length;
+        int start = nextLine(data, 0, size); // skip the header
+
+        // cut the file into chunks, each one ends at the end of a line
+        int chunks = Math.max(1, Math.min(pool.getParallelism() * 4, (size - start) / MIN_CHUNK));
+        List<Callable<Chunk>> tasks = new ArrayList<>(chunks);
+        for (int k = 0; k < chunks; k++) {
+            int from = k == 0 ? start : start + (int) ((long) (size - start) * k / chunks);
+            int to = k == chunks - 1 ? size : start + (int) ((long) (size - start) * (k + 1) / chunks);
+            tasks.add(() -> parse(sheet, data, from, to, size));
+        }
+
+        List<Chunk> parsed = new ArrayList<>(chunks);
+        try {
+            for (Future<Chunk> f : pool.invokeAll(tasks)) parsed.add(f.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + fileName, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IOException("Could not load " + fileName, e.getCause());
+        }
+
+        // pre-size the sheet, then store the cells in file order
+        int maxX = -1, maxY = -1, count = 0;
+        for (Chunk c : parsed) {
+            maxX = Math.max(maxX, c.maxX);
+            maxY = Math.max(maxY, c.maxY);
+            count += c.size;
+        }
+        sheet.ensureSize(maxX + 1, maxY + 1);
+        sheet.ensureCapacity(count);
+        for (Chunk c : parsed) {
+            for (int i = 0; i < c.size; i++) {
+                sheet.put(c.xs[i], c.ys[i], c.contents[i], c.types[i], c.refs[i], c.formulas[i]);
+            }
+        }
+
+        // the stored values are used only if the lines are exactly the ones they were computed from
+        long hash = 0;
+        boolean hasHash = false;
+        long storedHash = 0;
+        for (Chunk c : parsed) {
+            hash = hash * power(HASH_MULTIPLIER, c.lines) + c.hash;
+            if (c.hasHash) {
+                hasHash = true;
+                storedHash = c.storedHash;
+            }
+        }
+        if (hasHash && hash == storedHash) {
+            for (Chunk c : parsed) {
+                for (int i = 0; i < c.values; i++) {
+                    sheet.restoreValue(c.vxs[i], c.vys[i], c.vkinds[i], c.vnumbers[i], c.vdepths[i]);
+                }
+            }
+        }
+    }
+
+    // the hash of one line (FNV-1a), see Ex2Sheet.save(fileName, true)
+    static long hashLine(byte[] buf, int start, int end) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = start; i < end; i++) {
+            h = (h ^ (buf[i] & 0xff)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    // base^exp (mod 2^64)
+    private static long power(long base, long exp) {
+        long ans = 1;
+        for (; exp > 0; exp >>= 1) {
+            if ((exp & 1) != 0) ans *= base;
+            base *= base;
+        }
+        return ans;
+    }
+
+    /**
+     * Parses the lines starting in [from, to): a chunk that does not start a line skips the partial line
+     * (the previous chunk parses it) and the last line is read up to its end even beyond to.
+     * The chunks share the array of the whole file, it is only read here.
+     */
+    private static Chunk parse(Ex2Sheet sheet, byte[] buf, int from, int to, int size) {
+        Chunk ans = new Chunk(sheet);
+        int begin = from > 0 && buf[from - 1] != '\n' ? nextLine(buf, from, size) : from;
+        int finish = to < size && buf[to - 1] != '\n' ? nextLine(buf, to, size) : to;
+        int i = begin;
+        while (i < finish) {
+            int end = i;
+            while (end < finish && buf[end] != '\n') end++;
+            int next = end + 1;
+            if (end > i && buf[end - 1] == '\r') end--;
+            if (startsWith(buf, i, end, HASH_PREFIX)) {
+                parseHash(buf, i + HASH_PREFIX.length(), end, ans);
+            } else {
+                ans.hash = ans.hash * HASH_MULTIPLIER + hashLine(buf, i, end);
+                ans.lines++;
+                if (startsWith(buf, i, end, VALUE_PREFIX)) {
+                    parseValue(buf, i + VALUE_PREFIX.length(), end, ans);
+                } else {
+                    parseLine(buf, i, end, ans);
+                }
+            }
+            i = next;
+        }
+        return ans;
+    }
+
+    // x,y,data (data is the rest of the line, it may contain commas)
+    private static void parseLine(byte[] buf, int start, int end, Chunk out) {
+        int comma1 = indexOf(buf, ',', start, end);
+        int comma2 = comma1 < 0 ? -1 : indexOf(buf, ',', comma1 + 1, end);
+        if (comma2 < 0) return;
+        int x = parseCoordinate(buf, start, comma1);
+        int y = parseCoordinate(buf, comma1 + 1, comma2);
+        if (x < 0 || y < 0) return;
+        String text = null; // empty
+        if (isContent(buf, comma2 + 1, end)) {
+            text = new String(buf, comma2 + 1, end - comma2 - 1, Charset.defaultCharset()); // as written by save
+        }
+        out.add(x, y, text);
+    }
+
+    // x,y,kind,number,depth (the rest of a #value line), a malformed value is ignored
+    private static void parseValue(byte[] buf, int start, int end, Chunk out) {
+        int c1 = indexOf(buf, ',', start, end), c2 = c1 < 0 ? -1 : indexOf(buf, ',', c1 + 1, end);
+        int c3 = c2 < 0 ? -1 : indexOf(buf, ',', c2 + 1, end), c4 = c3 < 0 ? -1 : indexOf(buf, ',', c3 + 1, end);
+        if (c4 < 0) return;
+        int x = parseCoordinate(buf, start, c1), y = parseCoordinate(buf, c1 + 1, c2);
+        int kind = parseCoordinate(buf, c2 + 1, c3);
+        if (x < 0 || y < 0 || kind < Ex2Sheet.EMPTY_VALUE || kind > Ex2Sheet.ERR_CYCLE_VALUE) return;
+        int depth = kind == Ex2Sheet.ERR_CYCLE_VALUE ? -1 : parseCoordinate(buf, c4 + 1, end); // -1 iff on a cycle
+        if (depth < 0 && kind != Ex2Sheet.ERR_CYCLE_VALUE) return;
+        try {
+            double number = Double.parseDouble(new String(buf, c3 + 1, c4 - c3 - 1, StandardCharsets.US_ASCII));
+            out.addValue(x, y, (byte) kind, number, depth);
+        } catch (NumberFormatException e) {
+            // not a value line written by save
+        }
+    }
+
+    // the hex hash of a #hash line, a malformed hash is not used
+    private static void parseHash(byte[] buf, int start, int end, Chunk out) {
+        try {
+            out.storedHash = Long.parseUnsignedLong(new String(buf, start, end - start, StandardCharsets.US_ASCII), 16);
+            out.hasHash = true;
+        } catch (NumberFormatException e) {
+            out.hasHash = false;
+        }
+    }
+
+    private static boolean startsWith(byte[] buf, int start, int end, String prefix) {
+        if (end - start < prefix.length()) return false;
+        for (int k = 0; k < prefix.length(); k++) {
+            if (buf[start + k] != prefix.charAt(k)) return false;
+        }
+        return true;
+    }
+
+    // a decimal int (as Integer.parseInt), -1 if it is not a valid coordinate
+    private static int parseCoordinate(byte[] buf, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buf[i] == '+' || buf[i] == '-')) negative = buf[i++] == '-';
+        if (i == end) return -1;
+        long v = 0;
+        for (; i < end; i++) {
+            if (buf[i] < '0' || buf[i] > '9') return -1;
+            v = v * 10 + (buf[i] - '0');
+            if (v >= Integer.MAX_VALUE) return -1; // also the largest coordinate a sheet can grow to
+        }
+        return negative && v != 0 ? -1 : (int) v;
+    }
+
+    // true iff [start, end) is not blank (as String.trim: characters up to ' ' are blank)
+    private static boolean isContent(byte[] buf, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if ((buf[i] & 0xff) > ' ') return true;
+        }
+        return false;
+    }
+
+    private static int indexOf(byte[] buf, char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buf[i] == c) return i;
+        }
+        return -1;
+    }
+
+    // the start of the line after the one containing i
+    private static int nextLine(byte[] buf, int i, int size) {
+        while (i < size && buf[i] != '\n') i++;
+        return Math.min(i + 1, size);
+    }
+}
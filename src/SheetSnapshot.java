@@ -0,0 +1,339 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A versioned binary snapshot of a sheet, written next to (not instead of) the text format of Ex2Sheet.save.
+ * Besides the content of the cells it keeps their compiled formulas and their last computed values,
+ * so opening a snapshot restores the sheet without classifying, parsing or recalculating anything.
+ * <pre>
+ * header: magic "EX2S", version, flags, width, height
+ * blocks: the cells of one tile (8 columns x 512 rows) each, one section per field:
+ *         count, x[], y[], type[], error[], content[] (UTF-8), references[] (cell keys),
+ *         hasFormula[], formula programs, value kind[], number[], depth[]
+ * footer: block count, then per block: tile x, tile y, offset, length, cell count
+ * trailer: the offset of the footer, magic
+ * </pre>
+ * The footer is an index of the blocks, so a region can be read (see readValues) without scanning the whole file.
+ */
+public class SheetSnapshot {
+    public static final int MAGIC = 0x45583253; // "EX2S"
+    public static final int VERSION = 1;
+    static final int FLAG_VALUES = 1; // the computed values are stored and up to date
+    private static final int HEADER = 20, TRAILER = 12, FOOTER_ENTRY = 24;
+    // a sheet is as large as its cells, or as it was created: a larger size than both is not trusted
+    static final int MAX_SIZE = 1 << 20;
+
+    private SheetSnapshot() {
+    }
+
+    // the cells of one block, one array per field (as in the file)
+    static final class Block {
+        final int size;
+        final int[] xs, ys;
+        final byte[] types, errors, kinds;
+        final String[] contents;
+        final long[][] refs;
+        final Formula[] formulas;
+        final double[] numbers;
+        final int[] depths;
+
+        Block(int size) {
+            this.size = size;
+            xs = new int[size];
+            ys = new int[size];
+            types = new byte[size];
+            errors = new byte[size];
+            kinds = new byte[size];
+            contents = new String[size];
+            refs = new long[size][];
+            formulas = new Formula[size];
+            numbers = new double[size];
+            depths = new int[size];
+        }
+
+        // the block in its file format
+        ByteBuffer toBytes() {
+            byte[][] text = new byte[size][];
+            int n = 4 + size * (4 + 4 + 1 + 1 + 4 + 4 + 1 + 1 + 8 + 4);
+            for (int i = 0; i < size; i++) {
+                text[i] = contents[i].getBytes(StandardCharsets.UTF_8);
+                n += text[i].length + refs[i].length * 8;
+                if (formulas[i] != null) n += formulas[i].byteSize();
+            }
+            ByteBuffer out = ByteBuffer.allocate(n);
+            out.putInt(size);
+            for (int x : xs) out.putInt(x);
+            for (int y : ys) out.putInt(y);
+            out.put(types);
+            out.put(errors);
+            for (byte[] t : text) out.putInt(t.length).put(t);
+            for (long[] r : refs) {
+                out.putInt(r.length);
+                for (long key : r) out.putLong(key);
+            }
+            for (Formula f : formulas) out.put((byte) (f != null ? 1 : 0));
+            for (Formula f : formulas) {
+                if (f != null) f.write(out);
+            }
+            out.put(kinds);
+            for (double v : numbers) out.putDouble(v);
+            for (int d : depths) out.putInt(d);
+            return out.flip();
+        }
+
+        static Block read(ByteBuffer in) throws IOException {
+            int size = in.getInt();
+            if (size < 0 || size > TileIndex.TILE_CELLS) throw new IOException("Invalid block size: " + size);
+            Block b = new Block(size);
+            for (int i = 0; i < size; i++) b.xs[i] = in.getInt();
+            for (int i = 0; i < size; i++) b.ys[i] = in.getInt();
+            for (int i = 0; i < size; i++) {
+                if (!valid(b.xs[i], b.ys[i])) throw new IOException("Invalid cell: " + b.xs[i] + "," + b.ys[i]);
+            }
+            in.get(b.types);
+            in.get(b.errors);
+            for (int i = 0; i < size; i++) {
+                if (!validType(b.types[i])) throw new IOException("Invalid cell type: " + b.types[i]);
+                if (b.errors[i] < Ex2Sheet.NO_ERROR || b.errors[i] > Ex2Sheet.CYCLE_ERROR) {
+                    throw new IOException("Invalid error code: " + b.errors[i]);
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                int n = in.getInt();
+                if (n < 0 || n > in.remaining()) throw new IOException("Invalid text length: " + n);
+                byte[] bytes = new byte[n];
+                in.get(bytes);
+                b.contents[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            for (int i = 0; i < size; i++) {
+                int n = in.getInt();
+                if (n < 0 || n > in.remaining() / 8) throw new IOException("Invalid reference count: " + n);
+                b.refs[i] = new long[n];
+                for (int k = 0; k < n; k++) {
+                    long key = in.getLong();
+                    if (!valid(CellKey.x(key), CellKey.y(key))) throw new IOException("Invalid reference: " + key);
+                    b.refs[i][k] = key;
+                }
+            }
+            boolean[] hasFormula = new boolean[size];
+            for (int i = 0; i < size; i++) hasFormula[i] = in.get() != 0;
+            for (int i = 0; i < size; i++) {
+                if (hasFormula[i]) b.formulas[i] = Formula.read(b.contents[i], in);
+            }
+            in.get(b.kinds);
+            for (int i = 0; i < size; i++) {
+                if (b.kinds[i] < Ex2Sheet.EMPTY_VALUE || b.kinds[i] > Ex2Sheet.ERR_CYCLE_VALUE) {
+                    throw new IOException("Invalid value kind: " + b.kinds[i]);
+                }
+            }
+            for (int i = 0; i < size; i++) b.numbers[i] = in.getDouble();
+            for (int i = 0; i < size; i++) b.depths[i] = in.getInt();
+            return b;
+        }
+
+        // one of the cell types of Ex2Utils
+        private static boolean validType(int type) {
+            return type == Ex2Utils.TEXT || type == Ex2Utils.NUMBER || type == Ex2Utils.FORM
+                    || type == Ex2Utils.ERR_FORM_FORMAT || type == Ex2Utils.ERR_CYCLE_FORM;
+        }
+
+        // the coordinates of a cell a sheet can hold
+        private static boolean valid(int x, int y) {
+            return x >= 0 && y >= 0 && x < Integer.MAX_VALUE && y < Integer.MAX_VALUE;
+        }
+    }
+
+    // one entry of the footer
+    private static final class Entry {
+        int tileX, tileY, length, cells;
+        long offset;
+    }
+
+    /**
+     * Writes a snapshot of the sheet (which is recalculated first, so the stored values are up to date).
+     * @param sheet the sheet.
+     * @param fileName the file to write, replaced if it exists.
+     */
+    public static void save(Ex2Sheet sheet, String fileName) throws IOException {
+        sheet.recalculate();
+
+        // group the used cells by tile
+        LongIntMap blockOf = new LongIntMap();
+        List<IntList> blocks = new ArrayList<>();
+        List<Entry> entries = new ArrayList<>();
+        for (int slot = 0; slot < sheet.slotCount(); slot++) {
+            if (!sheet.isUsed(slot)) continue;
+            int tileX = sheet.slotX(slot) >>> TileIndex.COLUMN_BITS, tileY = sheet.slotY(slot) >>> TileIndex.ROW_BITS;
+            long key = CellKey.pack(tileX, tileY);
+            int b = blockOf.get(key);
+            if (b == -1) {
+                b = blocks.size();
+                blockOf.put(key, b);
+                blocks.add(new IntList());
+                Entry e = new Entry();
+                e.tileX = tileX;
+                e.tileY = tileY;
+                entries.add(e);
+            }
+            blocks.get(b).add(slot);
+        }
+
+        try (FileChannel out = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC).putInt(VERSION).putInt(FLAG_VALUES).putInt(sheet.width()).putInt(sheet.height());
+            long offset = writeFully(out, header.flip(), 0);
+
+            for (int b = 0; b < blocks.size(); b++) {
+                IntList slots = blocks.get(b);
+                Block block = new Block(slots.size());
+                for (int i = 0; i < slots.size(); i++) sheet.exportCell(slots.get(i), block, i);
+                ByteBuffer bytes = block.toBytes();
+                Entry e = entries.get(b);
+                e.offset = offset;
+                e.length = bytes.remaining();
+                e.cells = block.size;
+                offset = writeFully(out, bytes, offset);
+            }
+
+            ByteBuffer footer = ByteBuffer.allocate(4 + FOOTER_ENTRY * entries.size() + TRAILER);
+            footer.putInt(entries.size());
+            for (Entry e : entries) {
+                footer.putInt(e.tileX).putInt(e.tileY).putLong(e.offset).putInt(e.length).putInt(e.cells);
+            }
+            footer.putLong(offset).putInt(MAGIC);
+            writeFully(out, footer.flip(), offset);
+        }
+    }
+
+    /**
+     * Replaces the content of the sheet with a snapshot.
+     * The stored values are used as they are, nothing is classified, parsed or recalculated
+     * (unless the snapshot has no values, then the sheet is recalculated once).
+     * @throws IOException if the file can not be read or is not a valid snapshot (the sheet is not changed then).
+     */
+    public static void load(Ex2Sheet sheet, String fileName) throws IOException {
+        try (FileChannel in = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            ByteBuffer header = readHeader(in, fileName);
+            int flags = header.getInt(), width = header.getInt(), height = header.getInt();
+            List<Block> blocks = new ArrayList<>();
+            for (Entry e : readFooter(in, fileName)) blocks.add(readBlock(in, e));
+            checkSize(width, height, blocks, fileName);
+            sheet.restore(width, height, blocks, (flags & FLAG_VALUES) != 0);
+        }
+    }
+
+    /**
+     * Reads the values of a region of a snapshot (as Sheet.value), reading only the blocks that overlap it.
+     * @return values[x - x0][y - y0] for x0 <= x <= x1, y0 <= y <= y1.
+     */
+    public static String[][] readValues(String fileName, int x0, int y0, int x1, int y1) throws IOException {
+        if (x0 < 0 || y0 < 0 || x1 < x0 || y1 < y0) throw new IllegalArgumentException("Invalid region");
+        String[][] ans = new String[x1 - x0 + 1][y1 - y0 + 1];
+        for (String[] column : ans) java.util.Arrays.fill(column, Ex2Utils.EMPTY_CELL);
+        try (FileChannel in = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            ByteBuffer header = readHeader(in, fileName);
+            if ((header.getInt() & FLAG_VALUES) == 0) throw new IOException("The snapshot has no values: " + fileName);
+            for (Entry e : readFooter(in, fileName)) {
+                long tx0 = (long) e.tileX << TileIndex.COLUMN_BITS, ty0 = (long) e.tileY << TileIndex.ROW_BITS;
+                if (tx0 > x1 || tx0 + (1 << TileIndex.COLUMN_BITS) <= x0) continue;
+                if (ty0 > y1 || ty0 + (1 << TileIndex.ROW_BITS) <= y0) continue;
+                Block b = readBlock(in, e);
+                for (int i = 0; i < b.size; i++) {
+                    if (b.xs[i] >= x0 && b.xs[i] <= x1 && b.ys[i] >= y0 && b.ys[i] <= y1) {
+                        ans[b.xs[i] - x0][b.ys[i] - y0] = Ex2Sheet.display(b.kinds[i], b.numbers[i],
+                                Ex2Sheet.data(b.errors[i], b.contents[i]));
+                    }
+                }
+            }
+        }
+        return ans;
+    }
+
+    // the header, positioned after the version
+    private static ByteBuffer readHeader(FileChannel in, String fileName) throws IOException {
+        ByteBuffer header = readFully(in, 0, HEADER);
+        if (header.getInt() != MAGIC) throw new IOException("Not a sheet snapshot: " + fileName);
+        int version = header.getInt();
+        if (version != VERSION) throw new IOException("Unsupported snapshot version " + version + ": " + fileName);
+        return header;
+    }
+
+    // the size must hold all the cells of the blocks and must not be beyond them by more than MAX_SIZE
+    private static void checkSize(int width, int height, List<Block> blocks, String fileName) throws IOException {
+        int columns = 0, rows = 0;
+        for (Block b : blocks) {
+            for (int i = 0; i < b.size; i++) {
+                columns = Math.max(columns, b.xs[i] + 1);
+                rows = Math.max(rows, b.ys[i] + 1);
+            }
+        }
+        if (width <= 0 || height <= 0 || width < columns || height < rows
+                || width > Math.max(columns, MAX_SIZE) || height > Math.max(rows, MAX_SIZE)) {
+            throw new IOException("Invalid sheet size " + width + "x" + height + ": " + fileName);
+        }
+    }
+
+    private static List<Entry> readFooter(FileChannel in, String fileName) throws IOException {
+        long size = in.size();
+        if (size < HEADER + 4 + TRAILER) throw new IOException("Truncated snapshot: " + fileName);
+        ByteBuffer trailer = readFully(in, size - TRAILER, TRAILER);
+        long footer = trailer.getLong();
+        if (trailer.getInt() != MAGIC || footer < HEADER || footer > size - TRAILER - 4) {
+            throw new IOException("Truncated snapshot: " + fileName);
+        }
+        int count = readFully(in, footer, 4).getInt();
+        if (count < 0 || (long) count * FOOTER_ENTRY != size - TRAILER - 4 - footer) {
+            throw new IOException("Invalid snapshot index: " + fileName);
+        }
+        ByteBuffer index = readFully(in, footer + 4, count * FOOTER_ENTRY);
+        List<Entry> ans = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Entry e = new Entry();
+            e.tileX = index.getInt();
+            e.tileY = index.getInt();
+            e.offset = index.getLong();
+            e.length = index.getInt();
+            e.cells = index.getInt();
+            if (e.offset < HEADER || e.length < 0 || e.offset + e.length > footer) {
+                throw new IOException("Invalid snapshot index: " + fileName);
+            }
+            ans.add(e);
+        }
+        return ans;
+    }
+
+    private static Block readBlock(FileChannel in, Entry e) throws IOException {
+        ByteBuffer data = readFully(in, e.offset, e.length);
+        try {
+            Block b = Block.read(data);
+            if (b.size != e.cells) throw new IOException("Invalid snapshot block at " + e.offset);
+            return b;
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("Truncated snapshot block at " + e.offset, ex);
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel in, long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (in.read(buf, position + buf.position()) < 0) throw new EOFException("Unexpected end of snapshot");
+        }
+        buf.flip();
+        return buf;
+    }
+
+    // returns the position after the written bytes
+    private static long writeFully(FileChannel out, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) position += out.write(buf, position);
+        return position;
+    }
+}
@@ -0,0 +1,70 @@
+import java.util.Arrays;
+
+/**
+ * Sparse addressing of the cells of a sheet: every used cell gets a number (its slot), in the order the cells
+ * are first used, so the per cell data (kept in arrays indexed by slot) grows with the number of used cells,
+ * not with the area of the sheet.
+ * The slots are found through tiles of 8 columns x 512 rows (sheets are usually much taller than wide):
+ * a tile keeps the slots of its cells and is allocated only when one of its cells is first used.
+ */
+public class TileIndex {
+    public static final int COLUMN_BITS = 3, ROW_BITS = 9; // 8 columns x 512 rows per tile
+    public static final int TILE_CELLS = 1 << (COLUMN_BITS + ROW_BITS);
+    private static final int COLUMN_MASK = (1 << COLUMN_BITS) - 1, ROW_MASK = (1 << ROW_BITS) - 1;
+
+    private final LongIntMap tiles = new LongIntMap(); // (tile x, tile y) -> tile number
+    private int[][] tileSlots = new int[4][]; // tile number -> the slot of each of its cells, -1 for an unused cell
+    private int tileCount;
+    private long[] keys = new long[64]; // slot -> the CellKey of its cell
+    private int size;
+
+    // the slot of the x,y cell, -1 if it was never used
+    public int find(int x, int y) {
+        int tile = tiles.get(tileKey(x, y));
+        return tile < 0 ? -1 : tileSlots[tile][offset(x, y)];
+    }
+
+    // the slot of the x,y cell, a new slot (and tile) is allocated if needed
+    public int slot(int x, int y) {
+        long key = tileKey(x, y);
+        int tile = tiles.get(key);
+        if (tile < 0) {
+            tile = tileCount++;
+            if (tile == tileSlots.length) tileSlots = Arrays.copyOf(tileSlots, tile * 2);
+            tileSlots[tile] = new int[TILE_CELLS];
+            Arrays.fill(tileSlots[tile], -1);
+            tiles.put(key, tile);
+        }
+        int[] slots = tileSlots[tile];
+        int offset = offset(x, y);
+        if (slots[offset] < 0) {
+            if (size == keys.length) keys = Arrays.copyOf(keys, size * 2);
+            keys[size] = CellKey.pack(x, y);
+            slots[offset] = size++;
+        }
+        return slots[offset];
+    }
+
+    // the x coordinate of the cell in the given slot
+    public int x(int slot) {
+        return CellKey.x(keys[slot]);
+    }
+
+    // the y coordinate of the cell in the given slot
+    public int y(int slot) {
+        return CellKey.y(keys[slot]);
+    }
+
+    // number of slots in use, the slots are 0..size()-1
+    public int size() {
+        return size;
+    }
+
+    private static long tileKey(int x, int y) {
+        return CellKey.pack(x >>> COLUMN_BITS, y >>> ROW_BITS);
+    }
+
+    private static int offset(int x, int y) {
+        return ((x & COLUMN_MASK) << ROW_BITS) | (y & ROW_MASK);
+    }
+}
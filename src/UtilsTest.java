@@ -10,6 +10,15 @@ public class UtilsTest {
         assertFalse(Utils.isNumber("abc"));
         assertFalse(Utils.isNumber(null));
         assertFalse(Utils.isNumber(""));
+        // whatever Double.parseDouble accepts, as before the lexer
+        for (String n : new String[]{" 7 ", "+5", "-.5", "1.", "1e5", "-2E-3", "NaN", "-Infinity", "1e5d", "2f",
+                "0x1p3", "0x1.8P1", "3D"}) {
+            assertTrue(Utils.isNumber(n), n);
+            assertEquals(Double.parseDouble(n), CellLexer.classify(n).getNumber(), n);
+        }
+        for (String t : new String[]{".", "-", "e5", "1e", "1e5x", "nan", "Inf", "0x", "1d5", "Nice", "1 2"}) {
+            assertFalse(Utils.isNumber(t), t);
+        }
     }
 
     @Test